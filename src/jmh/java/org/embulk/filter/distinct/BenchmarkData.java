@@ -0,0 +1,163 @@
+package org.embulk.filter.distinct;
+
+import com.google.common.collect.ImmutableList;
+import org.embulk.EmbulkEmbed;
+import org.embulk.spi.Column;
+import org.embulk.spi.ExecSession;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageTestUtils;
+import org.embulk.spi.Schema;
+import org.embulk.spi.time.Timestamp;
+import org.embulk.spi.type.Type;
+import org.embulk.spi.type.Types;
+import org.msgpack.value.ValueFactory;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic records for the benchmarks: {@code columns} distinct columns of a type mix
+ * and a payload string column that is not part of the key.
+ *
+ * Each record repeats a key drawn from the keys used so far with the probability of
+ * {@code duplicateRatio}, and takes the next of {@code cardinality} keys otherwise.
+ */
+final class BenchmarkData
+{
+    static final int RECORDS = 1 << 16;
+
+    private BenchmarkData()
+    {
+    }
+
+    static ExecSession newSession(EmbulkEmbed embed)
+    {
+        return ExecSession.builder(embed.getInjector()).build();
+    }
+
+    /**
+     * @param types one of long, string, timestamp, json and mixed, which cycles through the four
+     */
+    static Schema schema(int columns, String types)
+    {
+        Schema.Builder builder = Schema.builder();
+        for (int i = 0; i < columns; i++) {
+            builder.add("c" + i, typeOf(types, i));
+        }
+        builder.add("payload", Types.STRING);
+        return builder.build();
+    }
+
+    static List<String> distinctColumnNames(Schema schema)
+    {
+        ImmutableList.Builder<String> names = ImmutableList.builder();
+        for (Column column : schema.getColumns()) {
+            if (!column.getName().equals("payload")) {
+                names.add(column.getName());
+            }
+        }
+        return names.build();
+    }
+
+    static Object[] values(Schema schema, long cardinality, double duplicateRatio)
+    {
+        Random random = new Random(42);
+        int columnCount = schema.getColumnCount();
+        Object[] values = new Object[RECORDS * columnCount];
+        long[] used = new long[RECORDS];
+        int usedCount = 0;
+        long nextKey = 0;
+        for (int r = 0; r < RECORDS; r++) {
+            long key;
+            if (usedCount > 0 && random.nextDouble() < duplicateRatio) {
+                key = used[random.nextInt(usedCount)];
+            }
+            else {
+                key = nextKey++ % cardinality;
+                used[usedCount++] = key;
+            }
+            for (int c = 0; c < columnCount - 1; c++) {
+                values[r * columnCount + c] = valueOf(schema.getColumnType(c), key, c);
+            }
+            values[r * columnCount + columnCount - 1] = "payload of record " + r;
+        }
+        return values;
+    }
+
+    static List<Page> pages(ExecSession session, Schema schema, Object[] values)
+    {
+        return PageTestUtils.buildPage(session.getBufferAllocator(), schema, values);
+    }
+
+    private static Type typeOf(String types, int column)
+    {
+        switch (types) {
+            case "long":
+                return Types.LONG;
+            case "string":
+                return Types.STRING;
+            case "timestamp":
+                return Types.TIMESTAMP;
+            case "json":
+                return Types.JSON;
+            case "mixed":
+                Type[] mix = {Types.LONG, Types.STRING, Types.TIMESTAMP, Types.JSON};
+                return mix[column % mix.length];
+            default:
+                throw new IllegalArgumentException("unknown types: " + types);
+        }
+    }
+
+    private static Object valueOf(Type type, long key, int column)
+    {
+        if (Types.LONG.equals(type)) {
+            return key * 31 + column;
+        }
+        else if (Types.STRING.equals(type)) {
+            return String.format("key-%012d-%d", key, column);
+        }
+        else if (Types.TIMESTAMP.equals(type)) {
+            return Timestamp.ofEpochSecond(1500000000L + key, column);
+        }
+        else {
+            return ValueFactory.newMap(
+                    ValueFactory.newString("id"), ValueFactory.newInteger(key),
+                    ValueFactory.newString("column"), ValueFactory.newInteger(column),
+                    ValueFactory.newString("tags"), ValueFactory.newArray(
+                            ValueFactory.newString("a"), ValueFactory.newString("b")));
+        }
+    }
+
+    /**
+     * Consumes and releases the pages of the filter.
+     */
+    static final class BlackholeOutput
+            implements PageOutput
+    {
+        private final Blackhole blackhole;
+
+        BlackholeOutput(Blackhole blackhole)
+        {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void add(Page page)
+        {
+            blackhole.consume(page.buffer().limit());
+            page.release();
+        }
+
+        @Override
+        public void finish()
+        {
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package org.embulk.filter.distinct;
+
+import org.embulk.EmbulkEmbed;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskSource;
+import org.embulk.spi.Exec;
+import org.embulk.spi.ExecAction;
+import org.embulk.spi.ExecSession;
+import org.embulk.spi.FilterPlugin;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.Schema;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a whole transaction of the filter over {@link BenchmarkData#RECORDS} records with
+ * each key store backend. Scores are per record and include encoding the keys, deciding them
+ * and copying the distinct records of pages that are not forwarded unchanged.
+ * exact keeps a single long or timestamp column in primitive tables.
+ *
+ * Run with the gc profiler, as the jmh task does, to compare gc.alloc.rate.norm of the backends.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DistinctFilterBenchmark
+{
+    @Param({"exact", "hash64", "hash128", "approximate", "off_heap", "prefiltered", "windowed", "batched"})
+    public String backend;
+
+    @Param({"1", "4"})
+    public int columns;
+
+    @Param({"long", "string", "timestamp", "json", "mixed"})
+    public String types;
+
+    @Param({"1000", "1000000"})
+    public long cardinality;
+
+    @Param({"0.0", "0.5", "0.9"})
+    public double duplicateRatio;
+
+    private final DistinctFilterPlugin plugin = new DistinctFilterPlugin();
+    private EmbulkEmbed embed;
+    private ExecSession session;
+    private Schema schema;
+    private Object[] values;
+    private List<Page> pages;
+
+    @Setup(Level.Trial)
+    public void setupTrial()
+    {
+        embed = new EmbulkEmbed.Bootstrap().initialize();
+        session = BenchmarkData.newSession(embed);
+        schema = BenchmarkData.schema(columns, types);
+        values = BenchmarkData.values(schema, cardinality, duplicateRatio);
+    }
+
+    // the filter releases the pages it reads, so every invocation gets new ones.
+    // each invocation is a new transaction, which starts with no keys
+    @Setup(Level.Invocation)
+    public void setupInvocation()
+    {
+        pages = BenchmarkData.pages(session, schema, values);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial()
+    {
+        session.cleanup();
+        embed.destroy();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkData.RECORDS)
+    public void filter(final Blackhole blackhole)
+            throws ExecutionException
+    {
+        Exec.doWith(session, new ExecAction<Void>()
+        {
+            @Override
+            public Void run()
+            {
+                runTransaction(blackhole);
+                return null;
+            }
+        });
+    }
+
+    private void runTransaction(final Blackhole blackhole)
+    {
+        plugin.transaction(config(), schema, new FilterPlugin.Control()
+        {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema)
+            {
+                try (PageOutput output = plugin.open(taskSource, schema, outputSchema,
+                        new BenchmarkData.BlackholeOutput(blackhole))) {
+                    for (Page page : pages) {
+                        output.add(page);
+                    }
+                    output.finish();
+                }
+            }
+        });
+    }
+
+    private ConfigSource config()
+    {
+        ConfigSource config = Exec.newConfigSource()
+                .set("type", "distinct")
+                .set("columns", BenchmarkData.distinctColumnNames(schema));
+        switch (backend) {
+            case "hash64":
+            case "hash128":
+            case "approximate":
+                return config.set("key_mode", backend);
+            case "off_heap":
+                return config.set("store", "off_heap");
+            case "prefiltered":
+                return config.set("expected_keys", Math.min(cardinality, BenchmarkData.RECORDS));
+            case "windowed":
+                return config.set("window", (BenchmarkData.RECORDS / 4) + " records");
+            case "batched":
+                return config.set("batched", true);
+            default:
+                return config;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.embulk.filter.distinct;
+
+import org.embulk.EmbulkEmbed;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.Column;
+import org.embulk.spi.Exec;
+import org.embulk.spi.ExecAction;
+import org.embulk.spi.ExecSession;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per record steps of the filter on their own: encoding the distinct columns
+ * into a key, hashing the key, and copying a record to the output with {@link ColumnVisitorImpl}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class KeyEncodingBenchmark
+{
+    @Param({"1", "4", "16"})
+    public int columns;
+
+    @Param({"long", "string", "timestamp", "json", "mixed"})
+    public String types;
+
+    private EmbulkEmbed embed;
+    private ExecSession session;
+    private Schema schema;
+    private List<Column> distinctColumns;
+    private List<Page> pages;
+    private PageReader pageReader;
+    private KeyEncoder encoder;
+
+    @Setup(Level.Trial)
+    public void setupTrial()
+    {
+        embed = new EmbulkEmbed.Bootstrap().initialize();
+        session = BenchmarkData.newSession(embed);
+        schema = BenchmarkData.schema(columns, types);
+        distinctColumns = new ArrayList<>();
+        for (String name : BenchmarkData.distinctColumnNames(schema)) {
+            distinctColumns.add(schema.lookupColumn(name));
+        }
+        pages = BenchmarkData.pages(session, schema, BenchmarkData.values(schema, BenchmarkData.RECORDS, 0.0));
+        pageReader = new PageReader(schema);
+        encoder = new KeyEncoder(distinctColumns);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial()
+    {
+        for (Page page : pages) {
+            page.release();
+        }
+        session.cleanup();
+        embed.destroy();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkData.RECORDS)
+    public void encodeKey(Blackhole blackhole)
+    {
+        for (Page page : pages) {
+            pageReader.setPage(viewOf(page));
+            while (pageReader.nextRecord()) {
+                encoder.encode(pageReader);
+                blackhole.consume(encoder.getLength());
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkData.RECORDS)
+    public void encodeAndHashKey(Blackhole blackhole)
+    {
+        long[] hash = new long[2];
+        for (Page page : pages) {
+            pageReader.setPage(viewOf(page));
+            while (pageReader.nextRecord()) {
+                encoder.encode(pageReader);
+                Murmur3.hash128(encoder.getBuffer(), encoder.getLength(), hash);
+                blackhole.consume(hash[0]);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BenchmarkData.RECORDS)
+    public void copyRecord(final Blackhole blackhole)
+            throws ExecutionException
+    {
+        // the page builder allocates its buffers in the session
+        Exec.doWith(session, new ExecAction<Void>()
+        {
+            @Override
+            public Void run()
+            {
+                try (PageBuilder pageBuilder = new PageBuilder(Exec.getBufferAllocator(), schema,
+                        new BenchmarkData.BlackholeOutput(blackhole))) {
+                    ColumnVisitorImpl visitor = new ColumnVisitorImpl(pageReader, pageBuilder);
+                    for (Page page : pages) {
+                        pageReader.setPage(viewOf(page));
+                        while (pageReader.nextRecord()) {
+                            schema.visitColumns(visitor);
+                            pageBuilder.addRecord();
+                        }
+                    }
+                    pageBuilder.finish();
+                }
+                return null;
+            }
+        });
+    }
+
+    // the reader releases the pages it read, so it reads views that keep the pages
+    private static Page viewOf(Page page)
+    {
+        Buffer buffer = page.buffer();
+        return Page.wrap(Buffer.wrap(buffer.array(), buffer.offset(), buffer.limit()))
+                .setStringReferences(page.getStringReferences())
+                .setValueReferences(page.getValueReferences());
+    }
+}
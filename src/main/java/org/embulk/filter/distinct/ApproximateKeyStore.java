@@ -0,0 +1,214 @@
+package org.embulk.filter.distinct;
+
+import org.embulk.config.ConfigException;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Keeps only bloom filter bits of each encoded key, as a scalable bloom filter:
+ * when a filter holds as many keys as it was sized for, a filter twice as large
+ * with a tighter false positive probability is added, so that the compound false
+ * positive probability stays under the configured one however many keys arrive.
+ *
+ * A key reported as held may be new, so a few distinct records are dropped.
+ * Their expected number is accumulated while keys are added.
+ *
+ * When the next filter would exceed the capacity, filters stop growing and the oldest
+ * filters are dropped to make room for a filter as large as the last one. Keys held
+ * only by dropped filters are forgotten, so their duplicates pass again, but memory
+ * and the false positive probability stay bounded.
+ */
+class ApproximateKeyStore
+        implements KeyStore
+{
+    private static final Logger logger = Exec.getLogger(ApproximateKeyStore.class);
+    // each filter's false positive probability is this ratio of the previous one
+    private static final double TIGHTENING_RATIO = 0.5;
+    private static final int GROWTH_FACTOR = 2;
+    private static final int FPP_REFRESH_INTERVAL = 1024;
+
+    private final long capacity;
+    private final Deque<Filter> filters = new ArrayDeque<>();
+    private final long[] hash = new long[2];
+    private long size;
+    private long estimatedBytes;
+    private long droppedKeys;
+    private long addedFilters;
+    private double falseDrops;
+    private double currentFpp;
+    private int addsSinceRefresh;
+
+    /**
+     * @param initialKeys the number of keys the first filter is sized for
+     * @param fpp the compound false positive probability to stay under
+     * @param capacity the maximum number of bytes of all filters
+     */
+    ApproximateKeyStore(long initialKeys, double fpp, long capacity)
+    {
+        this.capacity = capacity;
+        double firstFpp = fpp * (1 - TIGHTENING_RATIO);
+        if (BloomFilter.estimatedBytes(initialKeys, firstFpp) > capacity) {
+            throw new ConfigException(String.format(
+                    "a bloom filter for %d keys needs %d bytes, more than approximate_capacity %d bytes. "
+                            + "increase approximate_capacity or decrease expected_keys",
+                    initialKeys, BloomFilter.estimatedBytes(initialKeys, firstFpp), capacity));
+        }
+        addFilter(new Filter(initialKeys, firstFpp));
+    }
+
+    @Override
+    public synchronized boolean add(byte[] key, int length)
+    {
+        Murmur3.hash128(key, length, hash);
+        if (mightContain()) {
+            return false;
+        }
+        put();
+        return true;
+    }
+
+    @Override
+    public synchronized void addAbsent(byte[] key, int length)
+    {
+        Murmur3.hash128(key, length, hash);
+        put();
+    }
+
+    @Override
+    public synchronized void addAll(KeyBatch batch, boolean[] added)
+    {
+        KeyBatch.addEach(this, batch, added);
+    }
+
+    @Override
+    public synchronized boolean contains(byte[] key, int length)
+    {
+        Murmur3.hash128(key, length, hash);
+        return mightContain();
+    }
+
+    @Override
+    public synchronized long size()
+    {
+        return size;
+    }
+
+    @Override
+    public synchronized long estimatedBytes()
+    {
+        return estimatedBytes;
+    }
+
+    /**
+     * @return the number of filters added after the first one
+     */
+    @Override
+    public synchronized long rehashes()
+    {
+        return addedFilters;
+    }
+
+    /**
+     * @return the expected number of new keys reported as held so far
+     */
+    synchronized double estimatedFalseDrops()
+    {
+        return falseDrops;
+    }
+
+    /**
+     * @return the number of keys forgotten with dropped filters
+     */
+    synchronized long droppedKeys()
+    {
+        return droppedKeys;
+    }
+
+    private boolean mightContain()
+    {
+        for (Filter filter : filters) {
+            if (filter.bloom.mightContain(hash[0], hash[1])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void put()
+    {
+        Filter last = filters.getLast();
+        if (last.keys >= last.expectedKeys) {
+            last = nextFilter(last);
+        }
+        last.bloom.put(hash[0], hash[1]);
+        last.keys++;
+        size++;
+
+        // every accepted key stands for 1 / (1 - p) new keys probed, p of which were dropped
+        if (++addsSinceRefresh >= FPP_REFRESH_INTERVAL) {
+            refreshFpp();
+        }
+        falseDrops += currentFpp / (1 - currentFpp);
+    }
+
+    private Filter nextFilter(Filter last)
+    {
+        long expectedKeys = last.expectedKeys * GROWTH_FACTOR;
+        double fpp = last.fpp * TIGHTENING_RATIO;
+        if (estimatedBytes + BloomFilter.estimatedBytes(expectedKeys, fpp) > capacity) {
+            // stop growing and slide a window of equal filters over the keys
+            expectedKeys = last.expectedKeys;
+            fpp = last.fpp;
+            long bytes = BloomFilter.estimatedBytes(expectedKeys, fpp);
+            if (droppedKeys == 0) {
+                logger.warn("bloom filters reached the approximate capacity of {} bytes. "
+                        + "the oldest keys are forgotten from now on, so their duplicates may pass", capacity);
+            }
+            while (estimatedBytes + bytes > capacity) {
+                Filter oldest = filters.removeFirst();
+                estimatedBytes -= oldest.bloom.estimatedBytes();
+                droppedKeys += oldest.keys;
+            }
+        }
+        Filter filter = new Filter(expectedKeys, fpp);
+        addFilter(filter);
+        addedFilters++;
+        return filter;
+    }
+
+    private void addFilter(Filter filter)
+    {
+        filters.addLast(filter);
+        estimatedBytes += filter.bloom.estimatedBytes();
+        refreshFpp();
+    }
+
+    // 1 - the probability that no filter reports a false positive
+    private void refreshFpp()
+    {
+        double pass = 1;
+        for (Filter filter : filters) {
+            pass *= 1 - filter.bloom.expectedFpp();
+        }
+        currentFpp = 1 - pass;
+        addsSinceRefresh = 0;
+    }
+
+    private static final class Filter
+    {
+        private final long expectedKeys;
+        private final double fpp;
+        private final BloomFilter bloom;
+        private long keys;
+
+        Filter(long expectedKeys, double fpp)
+        {
+            this.expectedKeys = Math.max(expectedKeys, 1);
+            this.fpp = fpp;
+            this.bloom = new BloomFilter(this.expectedKeys, fpp);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.embulk.filter.distinct;
+
+/**
+ * A bloom filter over 128-bit key hashes, probed with Kirsch-Mitzenmacher double hashing.
+ *
+ * Not thread-safe.
+ */
+class BloomFilter
+{
+    private static final double LN2 = Math.log(2);
+
+    private final long[] words;
+    private final long bitCount;
+    private final int hashCount;
+    private long bitsSet;
+
+    BloomFilter(long expectedKeys, double fpp)
+    {
+        this(new long[wordsFor(optimalBits(expectedKeys, fpp))],
+             optimalHashes(expectedKeys, wordsFor(optimalBits(expectedKeys, fpp)) * 64L));
+    }
+
+    BloomFilter(long[] words, int hashCount)
+    {
+        this.words = words;
+        this.bitCount = words.length * 64L;
+        this.hashCount = hashCount;
+        for (long word : words) {
+            bitsSet += Long.bitCount(word);
+        }
+    }
+
+    static long optimalBits(long expectedKeys, double fpp)
+    {
+        long keys = Math.max(expectedKeys, 1);
+        return Math.max(64, (long) Math.ceil(-keys * Math.log(fpp) / (LN2 * LN2)));
+    }
+
+    static int optimalHashes(long expectedKeys, long bits)
+    {
+        long keys = Math.max(expectedKeys, 1);
+        return Math.max(1, (int) Math.round((double) bits / keys * LN2));
+    }
+
+    /**
+     * @return the bytes of a filter sized for the keys and probability
+     */
+    static long estimatedBytes(long expectedKeys, double fpp)
+    {
+        return wordsFor(optimalBits(expectedKeys, fpp)) * 8L;
+    }
+
+    private static int wordsFor(long bits)
+    {
+        long words = (bits + 63) / 64;
+        if (words > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("bloom filter is too large: " + bits + " bits");
+        }
+        return (int) words;
+    }
+
+    /**
+     * @return true if any bit changed, i.e. the hash was definitely not put before
+     */
+    boolean put(long hash1, long hash2)
+    {
+        boolean changed = false;
+        long combined = hash1;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = (combined & Long.MAX_VALUE) % bitCount;
+            int index = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            if ((words[index] & mask) == 0) {
+                words[index] |= mask;
+                bitsSet++;
+                changed = true;
+            }
+            combined += hash2;
+        }
+        return changed;
+    }
+
+    boolean mightContain(long hash1, long hash2)
+    {
+        long combined = hash1;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = (combined & Long.MAX_VALUE) % bitCount;
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+            combined += hash2;
+        }
+        return true;
+    }
+
+    /**
+     * @return the probability that a key never put is reported as contained, given the bits set so far
+     */
+    double expectedFpp()
+    {
+        return Math.pow((double) bitsSet / bitCount, hashCount);
+    }
+
+    long[] getWords()
+    {
+        return words;
+    }
+
+    int getHashCount()
+    {
+        return hashCount;
+    }
+
+    long estimatedBytes()
+    {
+        return words.length * 8L;
+    }
+}
@@ -0,0 +1,170 @@
+package org.embulk.filter.distinct;
+
+import org.embulk.spi.DataException;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds the memory of a key store by memory_budget with memory_policy fail, approximate or stop.
+ *
+ * The estimated bytes of the store are read every {@link #CHECK_INTERVAL} new keys rather than
+ * on every key, so the store may exceed the budget by the keys added in between. Once it is
+ * exceeded the store takes no more keys: keys already held still drop their records, and new
+ * keys fail the run, go to an {@link ApproximateKeyStore}, or pass without being remembered.
+ */
+class BudgetedKeyStore
+        implements KeyStore
+{
+    private static final Logger logger = Exec.getLogger(BudgetedKeyStore.class);
+    static final int CHECK_INTERVAL = 1024;
+    // the number of keys the first filter of the approximate store is sized for, it grows by itself
+    private static final long APPROXIMATE_KEYS = 1 << 16;
+
+    private final KeyStore store;
+    private final long budget;
+    private final MemoryPolicy policy;
+    private final double fpp;
+    private final long approximateCapacity;
+    private final AtomicLong keysSinceCheck = new AtomicLong();
+    // set before exceeded, when the policy is approximate
+    private volatile KeyStore overflow;
+    private volatile boolean exceeded;
+
+    /**
+     * @param fpp the false positive probability of the approximate store
+     * @param approximateCapacity the maximum number of bytes of the approximate store
+     */
+    BudgetedKeyStore(KeyStore store, long budget, MemoryPolicy policy, double fpp, long approximateCapacity)
+    {
+        if (policy == MemoryPolicy.SPILL) {
+            throw new IllegalArgumentException("spilling is done by SpillManager");
+        }
+        this.store = store;
+        this.budget = budget;
+        this.policy = policy;
+        this.fpp = fpp;
+        this.approximateCapacity = approximateCapacity;
+    }
+
+    @Override
+    public boolean add(byte[] key, int length)
+    {
+        if (exceeded) {
+            return addOverBudget(key, length);
+        }
+        boolean added = store.add(key, length);
+        if (added) {
+            countKeys(1);
+        }
+        return added;
+    }
+
+    @Override
+    public void addAbsent(byte[] key, int length)
+    {
+        if (exceeded) {
+            addOverBudget(key, length);
+            return;
+        }
+        store.addAbsent(key, length);
+        countKeys(1);
+    }
+
+    @Override
+    public void addAll(KeyBatch batch, boolean[] added)
+    {
+        if (exceeded) {
+            KeyBatch.addEach(this, batch, added);
+            return;
+        }
+        store.addAll(batch, added);
+        int count = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            if (added[i]) {
+                count++;
+            }
+        }
+        countKeys(count);
+    }
+
+    private boolean addOverBudget(byte[] key, int length)
+    {
+        if (store.contains(key, length)) {
+            return false;
+        }
+        return policy == MemoryPolicy.APPROXIMATE ? overflow.add(key, length) : true;
+    }
+
+    private void countKeys(int count)
+    {
+        if (count > 0 && keysSinceCheck.addAndGet(count) >= CHECK_INTERVAL) {
+            keysSinceCheck.set(0);
+            checkBudget();
+        }
+    }
+
+    private synchronized void checkBudget()
+    {
+        long bytes = store.estimatedBytes();
+        if (exceeded || bytes < budget) {
+            return;
+        }
+        switch (policy) {
+            case FAIL:
+                throw new DataException(String.format(
+                        "the key store reached memory_budget of %d bytes with %d distinct keys of about %d bytes. "
+                                + "increase memory_budget, or use memory_policy spill, approximate or stop",
+                        budget, store.size(), bytes));
+            case APPROXIMATE:
+                logger.warn("the key store reached memory_budget of {} bytes with {} distinct keys. new keys are kept approximately, "
+                                + "so a few distinct records may be dropped as false positives",
+                            budget, store.size());
+                overflow = new ApproximateKeyStore(APPROXIMATE_KEYS, fpp, approximateCapacity);
+                break;
+            default:
+                logger.warn("the key store reached memory_budget of {} bytes with {} distinct keys. deduplication stopped: "
+                                + "duplicates of keys not held yet are no longer dropped",
+                            budget, store.size());
+                break;
+        }
+        exceeded = true;
+    }
+
+    @Override
+    public boolean contains(byte[] key, int length)
+    {
+        KeyStore overflow = this.overflow;
+        return store.contains(key, length) || (overflow != null && overflow.contains(key, length));
+    }
+
+    @Override
+    public long size()
+    {
+        KeyStore overflow = this.overflow;
+        return store.size() + (overflow != null ? overflow.size() : 0);
+    }
+
+    @Override
+    public long estimatedBytes()
+    {
+        KeyStore overflow = this.overflow;
+        return store.estimatedBytes() + (overflow != null ? overflow.estimatedBytes() : 0);
+    }
+
+    @Override
+    public long rehashes()
+    {
+        KeyStore overflow = this.overflow;
+        return store.rehashes() + (overflow != null ? overflow.rehashes() : 0);
+    }
+
+    /**
+     * @return true once the budget was reached
+     */
+    boolean isExceeded()
+    {
+        return exceeded;
+    }
+}
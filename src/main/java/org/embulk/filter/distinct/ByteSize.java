@@ -0,0 +1,78 @@
+package org.embulk.filter.distinct;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+import com.google.common.math.LongMath;
+import org.embulk.config.ConfigException;
+
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A size in bytes configured as a plain number or with a binary unit, e.g. {@code 512MB}.
+ */
+public class ByteSize
+{
+    private static final Pattern PATTERN = Pattern.compile("\\s*(\\d+)\\s*([KMGT]?B?)\\s*");
+
+    private final long bytes;
+
+    public ByteSize(long bytes)
+    {
+        this.bytes = bytes;
+    }
+
+    @JsonCreator
+    public static ByteSize parseByteSize(String value)
+    {
+        Matcher matcher = PATTERN.matcher(value.toUpperCase(Locale.ENGLISH));
+        if (!matcher.matches()) {
+            throw new ConfigException(String.format("Invalid byte size '%s'. Use a number of bytes or a unit of KB, MB, GB or TB", value));
+        }
+        long number;
+        try {
+            number = Long.parseLong(matcher.group(1));
+        }
+        catch (NumberFormatException e) {
+            throw tooLarge(value);
+        }
+        String unit = matcher.group(2);
+        int shift = 0;
+        if (unit.startsWith("K")) {
+            shift = 10;
+        }
+        else if (unit.startsWith("M")) {
+            shift = 20;
+        }
+        else if (unit.startsWith("G")) {
+            shift = 30;
+        }
+        else if (unit.startsWith("T")) {
+            shift = 40;
+        }
+        try {
+            return new ByteSize(LongMath.checkedMultiply(number, 1L << shift));
+        }
+        catch (ArithmeticException e) {
+            throw tooLarge(value);
+        }
+    }
+
+    private static ConfigException tooLarge(String value)
+    {
+        return new ConfigException(String.format("Byte size '%s' is too large", value));
+    }
+
+    public long getBytes()
+    {
+        return bytes;
+    }
+
+    @JsonValue
+    @Override
+    public String toString()
+    {
+        return String.valueOf(bytes);
+    }
+}
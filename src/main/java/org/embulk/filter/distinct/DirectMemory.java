@@ -0,0 +1,121 @@
+package org.embulk.filter.distinct;
+
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * The limit of direct memory of the JVM, and the explicit release of direct buffers.
+ *
+ * Neither is part of the public API of Java 7, so both are reached by reflection: the limit
+ * from {@code sun.misc.VM} or from {@code -XX:MaxDirectMemorySize}, which defaults to the
+ * maximum heap size, and the release from {@code sun.misc.Unsafe#invokeCleaner} of Java 9 or
+ * the cleaner of a direct buffer of Java 7 and 8.
+ */
+class DirectMemory
+{
+    private static final Logger logger = Exec.getLogger(DirectMemory.class);
+    private static final String MAX_DIRECT_MEMORY_SIZE = "-XX:MaxDirectMemorySize=";
+
+    private static volatile boolean releaseFailed;
+
+    private DirectMemory()
+    {
+    }
+
+    /**
+     * @return the maximum number of bytes of direct buffers the JVM allocates
+     */
+    static long maxDirectMemory()
+    {
+        try {
+            Class<?> vm = Class.forName("sun.misc.VM");
+            return (Long) vm.getMethod("maxDirectMemory").invoke(null);
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            // moved to jdk.internal.misc.VM, which is not exported, by Java 9
+        }
+        long max = Runtime.getRuntime().maxMemory();
+        for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (argument.startsWith(MAX_DIRECT_MEMORY_SIZE)) {
+                max = parseSize(argument.substring(MAX_DIRECT_MEMORY_SIZE.length()), max);
+            }
+        }
+        return max;
+    }
+
+    // a size of a JVM option, e.g. 512m, or the default if it is not one
+    private static long parseSize(String value, long defaultSize)
+    {
+        String lower = value.toLowerCase(Locale.ENGLISH);
+        int shift = 0;
+        switch (lower.isEmpty() ? ' ' : lower.charAt(lower.length() - 1)) {
+            case 'k':
+                shift = 10;
+                break;
+            case 'm':
+                shift = 20;
+                break;
+            case 'g':
+                shift = 30;
+                break;
+            case 't':
+                shift = 40;
+                break;
+            default:
+                break;
+        }
+        try {
+            long number = Long.parseLong(shift == 0 ? lower : lower.substring(0, lower.length() - 1));
+            return number > (Long.MAX_VALUE >> shift) ? Long.MAX_VALUE : number << shift;
+        }
+        catch (NumberFormatException e) {
+            return defaultSize;
+        }
+    }
+
+    /**
+     * Frees the memory of a direct buffer now rather than when it is collected. The buffer
+     * and every view of it must not be used any more.
+     *
+     * @return false if the JVM does not allow it, and the memory is freed when the buffer is collected
+     */
+    static boolean release(ByteBuffer buffer)
+    {
+        if (!buffer.isDirect() || releaseFailed) {
+            return false;
+        }
+        try {
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+                return true;
+            }
+            catch (NoSuchMethodException e) {
+                // Java 7 and 8
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    Method clean = cleaner.getClass().getMethod("clean");
+                    clean.setAccessible(true);
+                    clean.invoke(cleaner);
+                }
+                return true;
+            }
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            releaseFailed = true;
+            logger.warn("direct buffers can not be released explicitly, so buffers replaced by the off-heap key store stay counted against off_heap_capacity", e);
+            return false;
+        }
+    }
+}
@@ -1,94 +1,545 @@
 package org.embulk.filter.distinct;
 
 import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.embulk.filter.distinct.DistinctFilterPlugin.PluginTask;
+import org.embulk.spi.Buffer;
 import org.embulk.spi.Column;
+import org.embulk.spi.DataException;
 import org.embulk.spi.Exec;
 import org.embulk.spi.Page;
 import org.embulk.spi.PageBuilder;
 import org.embulk.spi.PageOutput;
 import org.embulk.spi.PageReader;
 import org.embulk.spi.Schema;
+import org.embulk.spi.time.Timestamp;
 import org.embulk.spi.type.Types;
 import org.slf4j.Logger;
 
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 class DistinctFilterPageOutput
     implements PageOutput
 {
     private final static Logger logger = Exec.getLogger(DistinctFilterPageOutput.class);
+    private final static byte[] EMPTY_ORDER = new byte[0];
     private final PageReader pageReader;
+    // reads the records to decide them; the page reader itself unless decisions are asynchronous
+    private final PageReader keyReader;
     private final PageBuilder pageBuilder;
+    private final PageOutput output;
     private final ColumnVisitorImpl visitor;
     private final Schema outputSchema;
     private final List<Column> distinctColumns;
+    private final KeyEncoder encoder;
+    private final PrimitiveKeyStore primitiveKeys;
+    private final KeyStore store;
+    private final KeyStore keys;
+    private final SpillManager spillManager;
+    // set with state_path; the keys first seen by this task are persisted once it finished
+    private final StateStore stateStore;
+    private final StateStore.TaskKeys stateKeys;
+    private final long checkpointIntervalNanos;
+    private final KeepState keepState;
+    private final OrderEncoder orderEncoder;
+    private final RowCodec rowCodec;
+    private final long memoryBudget;
+    // set when dropped records are written to duplicates_file
+    private final DuplicatesWriter duplicates;
+    private final DuplicatesWriter.Rows duplicateRows;
+    // set when keys are remembered for a window; the column is null for a window of records
+    private final WindowedKeyStore window;
+    private final Column windowColumn;
+    // set when input is sorted by the distinct columns; the check is null unless check_sorted
+    private final boolean inputSorted;
+    private final SortOrderCheck sortOrderCheck;
+    private byte[] previousKey;
+    private int previousLength;
+    // counted by this task and merged into the totals of the transaction
+    private final DistinctStats stats = new DistinctStats();
+    private final DistinctStats totals;
+    private int decisions;
+    private boolean registered;
+    private boolean[] distinctRecords = new boolean[1024];
+    // set when records are decided a page at a time
+    private final KeyBatch keyBatch;
+    private final PrimitiveKeyStore.Batch primitiveBatch;
+    // set when records are decided by workers
+    private final Executor worker;
+    private final int maxPendingPages;
+    private final Deque<PendingPage> pendingPages = new ArrayDeque<>();
 
-    private final static Set<List<Object>> set = Sets.newConcurrentHashSet();
-
-    DistinctFilterPageOutput(PluginTask task, Schema inputSchema,
+    DistinctFilterPageOutput(PluginTask task, DistinctState state, Schema inputSchema,
                              Schema outputSchema, PageOutput pageOutput)
     {
         this.pageReader = new PageReader(inputSchema);
         this.pageBuilder = new PageBuilder(Exec.getBufferAllocator(), outputSchema, pageOutput);
+        this.output = pageOutput;
         this.visitor = new ColumnVisitorImpl(pageReader, pageBuilder);
         this.outputSchema = outputSchema;
         this.distinctColumns = task.getDistinctColumns();
+        this.encoder = new KeyEncoder(distinctColumns, task.getDistinctJsonPaths(), task.getDistinctKeyTransforms());
+
+        this.primitiveKeys = state.getPrimitiveKeys();
+        this.store = state.getStore();
+        this.keys = state.getKeys();
+        this.spillManager = state.getSpillManager();
+        this.stateStore = state.getStateStore();
+        this.stateKeys = stateStore != null ? stateStore.openTaskKeys() : null;
+        this.checkpointIntervalNanos = task.getCheckpointIntervalSeconds().isPresent()
+                ? TimeUnit.SECONDS.toNanos(task.getCheckpointIntervalSeconds().get()) : 0;
+        this.keepState = state.getKeepState();
+        this.memoryBudget = state.getMemoryBudget();
+        this.duplicates = state.getDuplicatesWriter();
+        this.duplicateRows = duplicates != null ? new DuplicatesWriter.Rows(inputSchema) : null;
+        this.window = keys instanceof WindowedKeyStore ? (WindowedKeyStore) keys : null;
+        this.windowColumn = task.getWindowColumn().isPresent()
+                ? inputSchema.lookupColumn(task.getWindowColumn().get()) : null;
+        if (task.getAsync()) {
+            this.keyReader = new PageReader(inputSchema);
+            this.worker = new SerialExecutor(state.getWorkerPool());
+            this.maxPendingPages = task.getAsyncQueuePages();
+        }
+        else {
+            this.keyReader = pageReader;
+            this.worker = null;
+            this.maxPendingPages = 0;
+        }
+        this.totals = state.getTotals();
+        this.inputSorted = task.getInputSorted();
+        this.sortOrderCheck = task.getCheckSorted() ? new SortOrderCheck(distinctColumns, task.getDistinctKeyTransforms()) : null;
+        // a key service is asked a page at a time
+        boolean batched = task.getBatched() || task.getKeyService().isPresent();
+        if (batched && spillManager == null && windowColumn == null && !inputSorted) {
+            this.keyBatch = primitiveKeys == null ? new KeyBatch() : null;
+            this.primitiveBatch = primitiveKeys != null ? new PrimitiveKeyStore.Batch() : null;
+        }
+        else {
+            this.keyBatch = null;
+            this.primitiveBatch = null;
+        }
+        if (keepState != null) {
+            this.rowCodec = new RowCodec(inputSchema);
+        }
+        else if (spillManager != null) {
+            this.rowCodec = new RowCodec(inputSchema);
+            spillManager.register();
+            this.registered = true;
+        }
+        else {
+            this.rowCodec = null;
+        }
+        Optional<String> orderColumnName = task.getKeep().getColumnName();
+        this.orderEncoder = orderColumnName.isPresent()
+                ? new OrderEncoder(inputSchema.lookupColumn(orderColumnName.get())) : null;
     }
 
     @Override
     public void add(Page page)
     {
-        pageReader.setPage(page);
+        stats.add(DistinctStats.Metric.INPUT_PAGES, 1);
+        if (keepState != null) {
+            offer(page);
+        }
+        else if (worker == null) {
+            int records = decide(page);
+            emit(page, distinctRecords, records);
+        }
+        else {
+            decideAsync(page);
+        }
+        checkpointIfDue();
+        stats.mergeInto(totals);
+    }
+
+    // checkpoints the keys of the tasks finished so far, never the keys of this running task
+    private void checkpointIfDue()
+    {
+        if (checkpointIntervalNanos > 0 && stateStore.isCheckpointDue(checkpointIntervalNanos)) {
+            stateStore.checkpoint();
+        }
+    }
+
+    private void decideAsync(final Page page)
+    {
+        FutureTask<boolean[]> decision = new FutureTask<>(new Callable<boolean[]>()
+        {
+            @Override
+            public boolean[] call()
+            {
+                int records = decide(page);
+                return Arrays.copyOf(distinctRecords, records);
+            }
+        });
+        pendingPages.addLast(new PendingPage(page, decision));
+        worker.execute(decision);
+        while (pendingPages.size() > maxPendingPages) {
+            emitPendingPage();
+        }
+    }
+
+    // offers every record to the winners of keep; the winners are emitted at finish
+    private void offer(Page page)
+    {
+        keyReader.setPage(viewOf(page));
+        while (keyReader.nextRecord()) {
+            stats.add(DistinctStats.Metric.INPUT_RECORDS, 1);
+            encoder.encode(keyReader);
+            rowCodec.encode(keyReader);
+            byte[] order = orderEncoder != null ? orderEncoder.encode(keyReader) : EMPTY_ORDER;
+            keepState.offer(encoder.getBuffer(), encoder.getLength(), order, rowCodec.getBuffer(), rowCodec.getLength());
+        }
+        page.release();
+    }
+
+    // returns the number of records of the page and sets whether each is distinct to distinctRecords
+    private int decide(Page page)
+    {
+        // the readers read views of the page, so that the page itself can be
+        // forwarded unchanged when none of its records is dropped
+        keyReader.setPage(viewOf(page));
+        if (window != null && windowColumn == null) {
+            window.advanceRecords(keyReader.getRecordCount());
+        }
+        return keyBatch != null || primitiveBatch != null ? decideBatch() : decideEach();
+    }
+
+    private void emit(Page page, boolean[] distinct, int records)
+    {
+        int distinctCount = 0;
+        for (int i = 0; i < records; i++) {
+            if (distinct[i]) {
+                distinctCount++;
+            }
+        }
+        stats.add(DistinctStats.Metric.INPUT_RECORDS, records);
+        stats.add(DistinctStats.Metric.OUTPUT_RECORDS, distinctCount);
+
+        if (records > 0 && distinctCount == records) {
+            // records built from earlier pages go first
+            pageBuilder.flush();
+            output.add(page);
+            stats.add(DistinctStats.Metric.FORWARDED_PAGES, 1);
+            return;
+        }
+
+        if (records > 0) {
+            pageReader.setPage(viewOf(page));
+            for (int i = 0; pageReader.nextRecord(); i++) {
+                if (distinct[i]) {
+                    outputSchema.visitColumns(visitor);
+                    pageBuilder.addRecord();
+                }
+                else {
+                    if (duplicates != null) {
+                        duplicateRows.add(pageReader);
+                    }
+                    if (logger.isDebugEnabled() && (keyBatch != null || primitiveBatch != null)) {
+                        logger.debug("Duplicated values: {}", getCurrentValues(pageReader));
+                    }
+                }
+            }
+            if (duplicates != null) {
+                // the duplicates of a page are appended at once
+                duplicates.write(duplicateRows);
+            }
+        }
+        page.release();
+    }
 
-        while (pageReader.nextRecord()) {
-            if (isDistinct(getCurrentValues())) {
-                outputSchema.visitColumns(visitor);
-                pageBuilder.addRecord();
+    private void emitPendingPage()
+    {
+        PendingPage pending = pendingPages.removeFirst();
+        boolean[] distinct;
+        try {
+            distinct = Uninterruptibles.getUninterruptibly(pending.decision);
+        }
+        catch (ExecutionException e) {
+            pending.page.release();
+            Throwables.propagateIfPossible(e.getCause());
+            throw new DataException(e.getCause());
+        }
+        emit(pending.page, distinct, distinct.length);
+    }
+
+    private int decideEach()
+    {
+        int records = 0;
+        while (keyReader.nextRecord()) {
+            boolean distinct;
+            if (++decisions == DistinctStats.LATENCY_SAMPLE_INTERVAL) {
+                decisions = 0;
+                long start = System.nanoTime();
+                distinct = isDistinct();
+                stats.recordLatency(System.nanoTime() - start);
+            }
+            else {
+                distinct = isDistinct();
+            }
+            ensureDistinctRecords(records + 1);
+            distinctRecords[records++] = distinct;
+        }
+        return records;
+    }
+
+    // collects the keys of all records first, then adds them to the store at once
+    private int decideBatch()
+    {
+        int records;
+        if (primitiveBatch != null) {
+            primitiveBatch.clear();
+            while (keyReader.nextRecord()) {
+                primitiveKeys.collect(keyReader, primitiveBatch);
+            }
+            records = primitiveBatch.size();
+            ensureDistinctRecords(records);
+            long start = System.nanoTime();
+            primitiveKeys.addAll(primitiveBatch, distinctRecords);
+            recordBatchLatency(System.nanoTime() - start, records);
+        }
+        else {
+            keyBatch.clear();
+            while (keyReader.nextRecord()) {
+                encoder.encode(keyReader);
+                keyBatch.add(encoder.getBuffer(), encoder.getLength());
+            }
+            records = keyBatch.size();
+            ensureDistinctRecords(records);
+            long start = System.nanoTime();
+            store.addAll(keyBatch, distinctRecords);
+            recordBatchLatency(System.nanoTime() - start, records);
+            if (stateKeys != null) {
+                for (int i = 0; i < records; i++) {
+                    if (distinctRecords[i]) {
+                        stateKeys.append(keyBatch.key(i), keyBatch.length(i));
+                    }
+                }
             }
         }
+        return records;
+    }
+
+    // a batch is sampled as one decision of its average latency
+    private void recordBatchLatency(long nanos, int records)
+    {
+        if (records > 0) {
+            stats.recordLatency(nanos / records);
+        }
+    }
+
+    private void ensureDistinctRecords(int records)
+    {
+        if (records > distinctRecords.length) {
+            distinctRecords = Arrays.copyOf(distinctRecords, Math.max(distinctRecords.length * 2, records));
+        }
+    }
+
+    // a page sharing the buffer and references of the page, whose release does not release them
+    private static Page viewOf(Page page)
+    {
+        Buffer buffer = page.buffer();
+        return Page.wrap(Buffer.wrap(buffer.array(), buffer.offset(), buffer.limit()))
+                .setStringReferences(page.getStringReferences())
+                .setValueReferences(page.getValueReferences());
     }
 
     @Override
     public void finish()
     {
+        while (!pendingPages.isEmpty()) {
+            emitPendingPage();
+        }
+        if (keepState != null) {
+            if (keepState.finishTask()) {
+                stats.add(DistinctStats.Metric.OUTPUT_RECORDS, keepState.emit(rowCodec, pageBuilder));
+            }
+        }
+        else if (registered) {
+            registered = false;
+            int generation = spillManager.unregister();
+            if (generation >= 0) {
+                stats.add(DistinctStats.Metric.OUTPUT_RECORDS, spillManager.drain(generation, store, stateKeys, rowCodec, pageBuilder));
+            }
+        }
         pageBuilder.finish();
+        if (stateKeys != null) {
+            // every record of this task went to the next plugin
+            stateStore.finishTask(stateKeys);
+            checkpointIfDue();
+        }
+        recordStoreStats();
+        stats.mergeInto(totals);
+        logger.info("distinct filter task: {}", stats.summary());
+        if (keys instanceof HashedKeyStore) {
+            logger.info("distinct keys: {}, expected probability of a hash collision: {}",
+                        keys.size(), ((HashedKeyStore) keys).collisionProbability());
+        }
+        else if (keys instanceof ApproximateKeyStore) {
+            ApproximateKeyStore approximate = (ApproximateKeyStore) keys;
+            logger.info("distinct keys: {}, estimated distinct records dropped by false positives: {}, keys forgotten over approximate_capacity: {}",
+                        keys.size(), Math.round(approximate.estimatedFalseDrops()), approximate.droppedKeys());
+        }
+        else if (window != null) {
+            logger.info("distinct keys in the window: {}, keys evicted from the window: {}",
+                        keys.size(), window.evictedKeys());
+        }
+    }
+
+    private void recordStoreStats()
+    {
+        if (primitiveKeys != null) {
+            stats.set(DistinctStats.Metric.DISTINCT_KEYS, primitiveKeys.size());
+            stats.set(DistinctStats.Metric.ESTIMATED_BYTES, primitiveKeys.estimatedBytes());
+            stats.set(DistinctStats.Metric.REHASHES, primitiveKeys.rehashes());
+        }
+        else if (store != null) {
+            stats.set(DistinctStats.Metric.DISTINCT_KEYS, store.size());
+            stats.set(DistinctStats.Metric.ESTIMATED_BYTES, store.estimatedBytes());
+            stats.set(DistinctStats.Metric.REHASHES, store.rehashes());
+        }
+        else if (keepState != null) {
+            stats.set(DistinctStats.Metric.DISTINCT_KEYS, keepState.size());
+            stats.set(DistinctStats.Metric.ESTIMATED_BYTES, keepState.estimatedBytes());
+        }
+        if (spillManager != null) {
+            stats.set(DistinctStats.Metric.SPILLED_RECORDS, spillManager.spilledRecords());
+        }
     }
 
     @Override
     public void close()
     {
+        // pages not emitted are released once no worker reads them
+        while (!pendingPages.isEmpty()) {
+            PendingPage pending = pendingPages.removeFirst();
+            pending.decision.cancel(false);
+            try {
+                Uninterruptibles.getUninterruptibly(pending.decision);
+            }
+            catch (ExecutionException | CancellationException e) {
+                // the failure is reported by add() or finish()
+            }
+            pending.page.release();
+        }
+        if (registered) {
+            registered = false;
+            spillManager.unregister();
+        }
+        if (stateKeys != null) {
+            stateStore.discardTask(stateKeys);
+        }
+        if (keyReader != pageReader) {
+            keyReader.close();
+        }
         pageReader.close();
         pageBuilder.close();
     }
 
-    private List<Object> getCurrentValues()
+    private boolean isDistinct()
+    {
+        if (primitiveKeys != null) {
+            boolean distinct = primitiveKeys.add(keyReader);
+            if (!distinct && logger.isDebugEnabled()) {
+                logger.debug("Duplicated values: {}", getCurrentValues(keyReader));
+            }
+            return distinct;
+        }
+
+        if (windowColumn != null && !keyReader.isNull(windowColumn)) {
+            Timestamp timestamp = keyReader.getTimestamp(windowColumn);
+            window.advance(timestamp.getEpochSecond() * 1000 + timestamp.getNano() / 1000000);
+        }
+        encoder.encode(keyReader);
+        byte[] key = encoder.getBuffer();
+        int length = encoder.getLength();
+        boolean distinct;
+        if (inputSorted) {
+            distinct = startsGroup(key, length);
+        }
+        else if (spillManager != null && spillManager.isSpilling()) {
+            if (!store.contains(key, length)) {
+                // decided when the spilled generation is drained
+                rowCodec.encode(keyReader);
+                spillManager.write(key, length, rowCodec.getBuffer(), rowCodec.getLength());
+                return false;
+            }
+            distinct = false;
+        }
+        else {
+            distinct = store.add(key, length);
+            if (distinct && stateKeys != null) {
+                stateKeys.append(key, length);
+            }
+            if (distinct && spillManager != null && store.estimatedBytes() >= memoryBudget) {
+                spillManager.startSpilling(store.size(), store.estimatedBytes());
+            }
+        }
+
+        if (!distinct && logger.isDebugEnabled()) {
+            logger.debug("Duplicated values: {}", getCurrentValues(keyReader));
+        }
+        return distinct;
+    }
+
+    // compares the key with the key of the previous record of this task, which is all sorted input needs.
+    // records of a key read by different tasks are not compared, so each task emits one of them
+    private boolean startsGroup(byte[] key, int length)
+    {
+        if (previousKey != null && previousLength == length) {
+            int i = 0;
+            while (i < length && previousKey[i] == key[i]) {
+                i++;
+            }
+            if (i == length) {
+                return false;
+            }
+        }
+        if (sortOrderCheck != null) {
+            sortOrderCheck.check(keyReader);
+        }
+        if (previousKey == null || previousKey.length < length) {
+            previousKey = new byte[Math.max(length, 64)];
+        }
+        System.arraycopy(key, 0, previousKey, 0, length);
+        previousLength = length;
+        return true;
+    }
+
+    private List<Object> getCurrentValues(PageReader reader)
     {
         ImmutableList.Builder<Object> builder = ImmutableList.builder();
         for (Column distinctColumn : distinctColumns) {
-            if (pageReader.isNull(distinctColumn)) {
+            if (reader.isNull(distinctColumn)) {
                 builder.add(Optional.absent());
             }
             else if (Types.BOOLEAN.equals(distinctColumn.getType())) {
-                builder.add(pageReader.getBoolean(distinctColumn));
+                builder.add(reader.getBoolean(distinctColumn));
             }
             else if (Types.DOUBLE.equals(distinctColumn.getType())) {
-                builder.add(pageReader.getDouble(distinctColumn));
+                builder.add(reader.getDouble(distinctColumn));
             }
             else if (Types.LONG.equals(distinctColumn.getType())) {
-                builder.add(pageReader.getLong(distinctColumn));
+                builder.add(reader.getLong(distinctColumn));
             }
             else if (Types.STRING.equals(distinctColumn.getType())) {
-                builder.add(pageReader.getString(distinctColumn));
+                builder.add(reader.getString(distinctColumn));
             }
             else if (Types.TIMESTAMP.equals(distinctColumn.getType())) {
-                builder.add(pageReader.getTimestamp(distinctColumn));
+                builder.add(reader.getTimestamp(distinctColumn));
             }
             else if (Types.JSON.equals(distinctColumn.getType())) {
-                builder.add(pageReader.getJson(distinctColumn));
+                builder.add(reader.getJson(distinctColumn));
             }
             else {
                 throw new RuntimeException("unsupported type: " + distinctColumn.getType());
@@ -98,13 +549,15 @@ class DistinctFilterPageOutput
         return builder.build();
     }
 
-    private boolean isDistinct(List<Object> values) {
-        if (set.add(values)) {
-            return true;
-        }
-        else {
-            logger.debug("Duplicated values: {}", values);
-            return false;
+    private static final class PendingPage
+    {
+        private final Page page;
+        private final FutureTask<boolean[]> decision;
+
+        PendingPage(Page page, FutureTask<boolean[]> decision)
+        {
+            this.page = page;
+            this.decision = decision;
         }
     }
 }
@@ -1,7 +1,10 @@
 package org.embulk.filter.distinct;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
 import org.embulk.config.Config;
+import org.embulk.config.ConfigDefault;
 import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigInject;
 import org.embulk.config.ConfigSource;
@@ -10,16 +13,40 @@ import org.embulk.config.TaskSource;
 import org.embulk.spi.Column;
 import org.embulk.spi.Exec;
 import org.embulk.spi.FilterPlugin;
+import org.embulk.spi.Page;
 import org.embulk.spi.PageOutput;
 import org.embulk.spi.Schema;
+import org.embulk.spi.type.Types;
 import org.slf4j.Logger;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class DistinctFilterPlugin
         implements FilterPlugin
 {
     private final static Logger logger = Exec.getLogger(DistinctFilterPlugin.class);
+    // state_path directories used by running transactions of this process
+    private final static Set<String> reservedStatePaths = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final static ConcurrentMap<String, DistinctState> runningStates = new ConcurrentHashMap<>();
+    private static String processTransactionId;
+    private static DistinctState processState;
+    private static String warnedTransactionId;
 
     public interface PluginTask
             extends Task
@@ -27,9 +54,156 @@ public class DistinctFilterPlugin
         @Config("columns")
         public List<String> getDistinctColumnNames();
 
+        @Config("keep")
+        @ConfigDefault("\"first\"")
+        public Keep getKeep();
+
+        @Config("task_count")
+        @ConfigDefault("null")
+        public Optional<Integer> getTaskCount();
+
+        @Config("key_transforms")
+        @ConfigDefault("{}")
+        public Map<String, List<KeyTransform>> getKeyTransforms();
+
+        @Config("key_mode")
+        @ConfigDefault("\"exact\"")
+        public KeyMode getKeyMode();
+
+        @Config("store")
+        @ConfigDefault("\"heap\"")
+        public StoreType getStore();
+
+        @Config("off_heap_capacity")
+        @ConfigDefault("null")
+        public Optional<ByteSize> getOffHeapCapacity();
+
+        @Config("expected_keys")
+        @ConfigDefault("null")
+        public Optional<Long> getExpectedKeys();
+
+        @Config("fpp")
+        @ConfigDefault("0.01")
+        public double getFpp();
+
+        @Config("approximate_capacity")
+        @ConfigDefault("null")
+        public Optional<ByteSize> getApproximateCapacity();
+
+        @Config("expected_distinct_keys")
+        @ConfigDefault("null")
+        public Optional<Long> getExpectedDistinctKeys();
+
+        @Config("load_factor")
+        @ConfigDefault("0.75")
+        public double getLoadFactor();
+
+        @Config("shards")
+        @ConfigDefault("64")
+        public int getShards();
+
+        @Config("window")
+        @ConfigDefault("null")
+        public Optional<Window> getWindow();
+
+        @Config("window_column")
+        @ConfigDefault("null")
+        public Optional<String> getWindowColumn();
+
+        @Config("window_generations")
+        @ConfigDefault("4")
+        public int getWindowGenerations();
+
+        @Config("input_sorted")
+        @ConfigDefault("false")
+        public boolean getInputSorted();
+
+        @Config("check_sorted")
+        @ConfigDefault("false")
+        public boolean getCheckSorted();
+
+        @Config("batched")
+        @ConfigDefault("false")
+        public boolean getBatched();
+
+        @Config("async")
+        @ConfigDefault("false")
+        public boolean getAsync();
+
+        @Config("async_workers")
+        @ConfigDefault("null")
+        public Optional<Integer> getAsyncWorkers();
+
+        @Config("async_queue_pages")
+        @ConfigDefault("16")
+        public int getAsyncQueuePages();
+
+        @Config("memory_budget")
+        @ConfigDefault("null")
+        public Optional<ByteSize> getMemoryBudget();
+
+        @Config("memory_policy")
+        @ConfigDefault("\"spill\"")
+        public MemoryPolicy getMemoryPolicy();
+
+        @Config("spill_dir")
+        @ConfigDefault("null")
+        public Optional<String> getSpillDir();
+
+        @Config("spill_partitions")
+        @ConfigDefault("64")
+        public int getSpillPartitions();
+
+        @Config("state_path")
+        @ConfigDefault("null")
+        public Optional<String> getStatePath();
+
+        @Config("checkpoint_interval_seconds")
+        @ConfigDefault("null")
+        public Optional<Integer> getCheckpointIntervalSeconds();
+
+        @Config("resume_checkpoint")
+        @ConfigDefault("false")
+        public boolean getResumeCheckpoint();
+
+        @Config("key_service")
+        @ConfigDefault("null")
+        public Optional<String> getKeyService();
+
+        @Config("key_service_partitions")
+        @ConfigDefault("64")
+        public int getKeyServicePartitions();
+
+        @Config("key_service_options")
+        @ConfigDefault("{}")
+        public Map<String, String> getKeyServiceOptions();
+
+        @Config("duplicates_file")
+        @ConfigDefault("null")
+        public Optional<String> getDuplicatesFile();
+
+        @Config("stats_file")
+        @ConfigDefault("null")
+        public Optional<String> getStatsFile();
+
+        @Config("jmx")
+        @ConfigDefault("false")
+        public boolean getJmx();
+
+        public String getTransactionId();
+        public void setTransactionId(String transactionId);
+
         @ConfigInject
         public void setDistinctColumns(List<Column> columns);
         public List<Column> getDistinctColumns();
+
+        // the json path of each distinct column, $ for the whole value
+        public void setDistinctJsonPaths(List<String> jsonPaths);
+        public List<String> getDistinctJsonPaths();
+
+        // the key transforms of each distinct column
+        public void setDistinctKeyTransforms(List<List<KeyTransform>> keyTransforms);
+        public List<List<KeyTransform>> getDistinctKeyTransforms();
     }
 
     @Override
@@ -38,8 +212,13 @@ public class DistinctFilterPlugin
     {
         PluginTask task = config.loadConfig(PluginTask.class);
 
-        List<Column> distinctColumns = convertNameToColumn(inputSchema, task.getDistinctColumnNames());
+        List<String> jsonPaths = new ArrayList<>();
+        List<List<KeyTransform>> keyTransforms = new ArrayList<>();
+        List<Column> distinctColumns = convertNameToColumn(inputSchema, task.getDistinctColumnNames(),
+                task.getKeyTransforms(), jsonPaths, keyTransforms);
         task.setDistinctColumns(distinctColumns);
+        task.setDistinctJsonPaths(jsonPaths);
+        task.setDistinctKeyTransforms(keyTransforms);
 
         if (task.getDistinctColumns().isEmpty()) {
             throw new ConfigException(
@@ -49,8 +228,308 @@ public class DistinctFilterPlugin
             logger.debug("distinct columns: {}", task.getDistinctColumns());
         }
 
+        Keep keep = task.getKeep();
+        if (keep.getMode() != Keep.Mode.FIRST) {
+            if (task.getKeyMode() != KeyMode.EXACT || task.getStore() != StoreType.HEAP
+                    || task.getExpectedKeys().isPresent() || task.getStatePath().isPresent()
+                    || task.getAsync() || task.getBatched() || task.getWindow().isPresent() || task.getInputSorted()
+                    || task.getKeyService().isPresent()) {
+                throw new ConfigException(String.format(
+                        "keep: %s supports neither key_mode, store, expected_keys, state_path, async, batched, window, input_sorted nor key_service.", keep));
+            }
+            // filters are not told the number of tasks, and the outputs open at a time do not tell it
+            if (!task.getTaskCount().isPresent()) {
+                throw new ConfigException(String.format(
+                        "keep: %s requires task_count, the number of tasks of the input, to emit the winners after the last task.", keep));
+            }
+            if (task.getTaskCount().get() <= 0) {
+                throw new ConfigException("task_count must be positive.");
+            }
+        }
+        else if (task.getTaskCount().isPresent()) {
+            throw new ConfigException("task_count is used only by keep other than first.");
+        }
+        if (keep.getColumnName().isPresent()) {
+            Column orderColumn = null;
+            for (Column column : inputSchema.getColumns()) {
+                if (column.getName().equals(keep.getColumnName().get())) {
+                    orderColumn = column;
+                }
+            }
+            if (orderColumn == null) {
+                throw new ConfigException(String.format("keep: %s refers to a column that does not exist.", keep));
+            }
+            if (Types.JSON.equals(orderColumn.getType())) {
+                throw new ConfigException(String.format("keep: %s can not order by a json column.", keep));
+            }
+        }
+
+        if (task.getInputSorted()) {
+            if (task.getKeyMode() != KeyMode.EXACT || task.getStore() != StoreType.HEAP
+                    || task.getExpectedKeys().isPresent() || task.getMemoryBudget().isPresent()
+                    || task.getStatePath().isPresent() || task.getWindow().isPresent()) {
+                throw new ConfigException(
+                        "input_sorted holds no keys and supports neither key_mode, store, expected_keys, memory_budget, state_path nor window.");
+            }
+            if (task.getCheckSorted()) {
+                for (Column column : task.getDistinctColumns()) {
+                    if (Types.JSON.equals(column.getType())) {
+                        throw new ConfigException(String.format(
+                                "check_sorted can not check the order of json column '%s'.", column.getName()));
+                    }
+                }
+            }
+        }
+        else if (task.getCheckSorted()) {
+            throw new ConfigException("check_sorted requires input_sorted.");
+        }
+        if (task.getWindow().isPresent()) {
+            Window window = task.getWindow().get();
+            if (task.getKeyMode() == KeyMode.APPROXIMATE || task.getStore() != StoreType.HEAP
+                    || task.getExpectedKeys().isPresent() || task.getMemoryBudget().isPresent()
+                    || task.getStatePath().isPresent()) {
+                throw new ConfigException(
+                        "window supports neither key_mode: approximate, store, expected_keys, memory_budget nor state_path.");
+            }
+            if (window.isRecords() && task.getWindowColumn().isPresent()) {
+                throw new ConfigException(String.format("window: %s is a number of records and takes no window_column.", window));
+            }
+            if (!window.isRecords()) {
+                if (!task.getWindowColumn().isPresent()) {
+                    throw new ConfigException(String.format("window: %s requires window_column.", window));
+                }
+                Column windowColumn = null;
+                for (Column column : inputSchema.getColumns()) {
+                    if (column.getName().equals(task.getWindowColumn().get())) {
+                        windowColumn = column;
+                    }
+                }
+                if (windowColumn == null || !Types.TIMESTAMP.equals(windowColumn.getType())) {
+                    throw new ConfigException(String.format(
+                            "window_column '%s' must be a timestamp column.", task.getWindowColumn().get()));
+                }
+            }
+            if (task.getWindowGenerations() <= 0 || task.getWindowGenerations() > 1024) {
+                throw new ConfigException("window_generations must be between 1 and 1024.");
+            }
+        }
+        else if (task.getWindowColumn().isPresent()) {
+            throw new ConfigException("window_column requires window.");
+        }
+        if (task.getStore() == StoreType.OFF_HEAP && task.getKeyMode() != KeyMode.EXACT) {
+            throw new ConfigException(
+                    "store: off_heap is supported only with key_mode: exact. hashed keys are already held in primitive arrays.");
+        }
+        if (task.getOffHeapCapacity().isPresent()) {
+            long maxDirectMemory = DirectMemory.maxDirectMemory();
+            if (task.getOffHeapCapacity().get().getBytes() > maxDirectMemory) {
+                throw new ConfigException(String.format(
+                        "off_heap_capacity of %d bytes exceeds the direct memory of the JVM, %d bytes. lower it or raise -XX:MaxDirectMemorySize",
+                        task.getOffHeapCapacity().get().getBytes(), maxDirectMemory));
+            }
+        }
+        if (task.getExpectedKeys().isPresent()) {
+            if (task.getKeyMode() == KeyMode.HASH64 || task.getKeyMode() == KeyMode.HASH128) {
+                throw new ConfigException(
+                        "expected_keys is not supported with key_mode: hash64 and hash128. hashed keys are looked up without touching key bytes.");
+            }
+            if (task.getExpectedKeys().get() <= 0) {
+                throw new ConfigException("expected_keys must be positive.");
+            }
+        }
+        if (task.getExpectedKeys().isPresent() || task.getKeyMode() == KeyMode.APPROXIMATE) {
+            if (!(task.getFpp() > 0 && task.getFpp() < 1)) {
+                throw new ConfigException("fpp must be greater than 0 and less than 1.");
+            }
+        }
+        if (task.getKeyMode() == KeyMode.APPROXIMATE && task.getMemoryBudget().isPresent()) {
+            throw new ConfigException(
+                    "memory_budget is not supported with key_mode: approximate. use approximate_capacity to bound its memory.");
+        }
+        if (task.getMemoryPolicy() != MemoryPolicy.SPILL) {
+            if (!task.getMemoryBudget().isPresent()) {
+                throw new ConfigException(String.format("memory_policy: %s requires memory_budget.", task.getMemoryPolicy()));
+            }
+            if (task.getKeep().getMode() != Keep.Mode.FIRST) {
+                throw new ConfigException(String.format(
+                        "memory_policy: %s is not supported with keep: %s. its records are spilled over memory_budget.",
+                        task.getMemoryPolicy(), task.getKeep()));
+            }
+        }
+        if (task.getExpectedDistinctKeys().isPresent() && task.getExpectedDistinctKeys().get() <= 0) {
+            throw new ConfigException("expected_distinct_keys must be positive.");
+        }
+        if (!(task.getLoadFactor() > 0 && task.getLoadFactor() < 1)) {
+            throw new ConfigException("load_factor must be greater than 0 and less than 1.");
+        }
+        if (task.getShards() <= 0 || task.getShards() > 65536) {
+            throw new ConfigException("shards must be between 1 and 65536.");
+        }
+        if (task.getAsyncWorkers().isPresent() && task.getAsyncWorkers().get() <= 0) {
+            throw new ConfigException("async_workers must be positive.");
+        }
+        if (task.getAsyncQueuePages() <= 0) {
+            throw new ConfigException("async_queue_pages must be positive.");
+        }
+        if (task.getSpillPartitions() <= 0) {
+            throw new ConfigException("spill_partitions must be positive.");
+        }
+        if (task.getCheckpointIntervalSeconds().isPresent() || task.getResumeCheckpoint()) {
+            if (!task.getStatePath().isPresent()) {
+                throw new ConfigException("checkpoint_interval_seconds and resume_checkpoint require state_path.");
+            }
+            if (task.getCheckpointIntervalSeconds().isPresent() && task.getCheckpointIntervalSeconds().get() <= 0) {
+                throw new ConfigException("checkpoint_interval_seconds must be positive.");
+            }
+        }
+        if (task.getDuplicatesFile().isPresent()) {
+            if (task.getKeep().getMode() != Keep.Mode.FIRST) {
+                throw new ConfigException(String.format("duplicates_file is not supported with keep: %s.", task.getKeep()));
+            }
+            if (task.getMemoryBudget().isPresent() && task.getMemoryPolicy() == MemoryPolicy.SPILL) {
+                throw new ConfigException(
+                        "duplicates_file is not supported with memory_policy: spill. spilled records are decided after they left the page.");
+            }
+        }
+        if (task.getKeyService().isPresent()) {
+            if (task.getKeyMode() == KeyMode.APPROXIMATE || task.getStore() != StoreType.HEAP
+                    || task.getExpectedKeys().isPresent() || task.getMemoryBudget().isPresent()
+                    || task.getStatePath().isPresent() || task.getWindow().isPresent() || task.getInputSorted()) {
+                throw new ConfigException(
+                        "key_service holds the keys in the service and supports neither key_mode: approximate, store, expected_keys, memory_budget, state_path, window nor input_sorted.");
+            }
+            if (task.getKeyServicePartitions() <= 0 || task.getKeyServicePartitions() > 65536) {
+                throw new ConfigException("key_service_partitions must be between 1 and 65536.");
+            }
+        }
+
         Schema outputSchema = inputSchema;
-        control.run(task.dump(), outputSchema);
+        String transactionId = UUID.randomUUID().toString();
+        task.setTransactionId(transactionId);
+
+        StateStore stateStore = null;
+        String reservedStatePath = null;
+        if (task.getStatePath().isPresent()) {
+            // reserved before the store takes its file lock, since a second lock taken in this process throws
+            // OverlappingFileLockException rather than being refused
+            String statePath = Paths.get(task.getStatePath().get()).toAbsolutePath().normalize().toString();
+            if (!reservedStatePaths.add(statePath)) {
+                throw new ConfigException("state_path is used by another running transaction: " + task.getStatePath().get());
+            }
+            reservedStatePath = statePath;
+            try {
+                stateStore = StateStore.open(Paths.get(statePath), task.getResumeCheckpoint());
+            }
+            finally {
+                if (stateStore == null) {
+                    reservedStatePaths.remove(statePath);
+                }
+            }
+        }
+        DistinctState state = null;
+        ObjectName mbeanName = null;
+        try {
+            // the keys live as long as the transaction, shared by the tasks it runs in this process
+            state = new DistinctState(task, inputSchema, stateStore, true);
+            runningStates.put(transactionId, state);
+            if (task.getJmx()) {
+                mbeanName = registerMBean(transactionId, state.getTotals());
+            }
+            control.run(task.dump(), outputSchema);
+            if (state.getKeepState() != null) {
+                state.getKeepState().checkWinnersEmitted();
+            }
+            if (stateStore != null) {
+                stateStore.commit();
+            }
+        }
+        finally {
+            runningStates.remove(transactionId);
+            if (mbeanName != null) {
+                unregisterMBean(mbeanName);
+            }
+            if (state != null) {
+                state.close();
+            }
+            if (stateStore != null) {
+                stateStore.close();
+                reservedStatePaths.remove(reservedStatePath);
+            }
+        }
+
+        logger.info("distinct filter: {}", state.getTotals().summary());
+        if (state.getDuplicatesWriter() != null) {
+            logger.info("wrote {} duplicated records to duplicates_file: {}",
+                        state.getDuplicatesWriter().getRecords(), task.getDuplicatesFile().get());
+        }
+        if (task.getStatsFile().isPresent()) {
+            writeStats(Paths.get(task.getStatsFile().get()), state.getTotals());
+        }
+    }
+
+    // tasks of a transaction running in another process, e.g. by a distributed executor,
+    // share the keys with the other tasks of the transaction open in this process at the
+    // same time only, unless the keys are held by key_service. the process does not know
+    // when the transaction ends, so its state is closed once its last open output closes.
+    private static synchronized DistinctState openProcessState(PluginTask task, Schema inputSchema)
+    {
+        if (!task.getTransactionId().equals(processTransactionId)) {
+            if (!task.getKeyService().isPresent() && !task.getTransactionId().equals(warnedTransactionId)) {
+                logger.warn("the transaction runs in another process. distinct keys are shared only by the tasks running in this process at the same time. use key_service to share them");
+                warnedTransactionId = task.getTransactionId();
+            }
+            // a state of an earlier transaction is closed by its outputs still open
+            processState = new DistinctState(task, inputSchema, null, false);
+            processTransactionId = task.getTransactionId();
+        }
+        processState.retain();
+        return processState;
+    }
+
+    private static synchronized void closeProcessState(DistinctState state)
+    {
+        if (!state.release()) {
+            return;
+        }
+        if (state == processState) {
+            processState = null;
+            processTransactionId = null;
+        }
+        state.close();
+    }
+
+    private static ObjectName registerMBean(String transactionId, DistinctStats totals)
+    {
+        try {
+            ObjectName name = new ObjectName("org.embulk.filter.distinct:type=DistinctFilter,transaction=" + transactionId);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(totals, name);
+            return name;
+        }
+        catch (JMException e) {
+            logger.warn("failed to register the stats to JMX", e);
+            return null;
+        }
+    }
+
+    private static void unregisterMBean(ObjectName name)
+    {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
+        catch (JMException e) {
+            logger.warn("failed to unregister the stats from JMX", e);
+        }
+    }
+
+    // the records are already committed, so a stats file that can not be written only warns
+    private static void writeStats(Path path, DistinctStats totals)
+    {
+        try {
+            new ObjectMapper().writeValue(path.toFile(), totals.toMap());
+        }
+        catch (IOException e) {
+            logger.warn("failed to write stats_file: " + path, e);
+        }
     }
 
     @Override
@@ -58,21 +537,124 @@ public class DistinctFilterPlugin
                            final Schema outputSchema, final PageOutput output)
     {
         final PluginTask task = taskSource.loadTask(PluginTask.class);
-        return new DistinctFilterPageOutput(task, inputSchema,
-                                            outputSchema, output);
+        DistinctState state = runningStates.get(task.getTransactionId());
+        if (state != null) {
+            return new DistinctFilterPageOutput(task, state, inputSchema, outputSchema, output);
+        }
+        if (task.getStatePath().isPresent()) {
+            throw new ConfigException(
+                    "state_path is not opened in this process. state_path requires an executor running tasks in the process of the transaction: " + task.getStatePath().get());
+        }
+        if (task.getKeyService().isPresent() && task.getKeyService().get().equals("local")) {
+            // the partitions of key_service: local live in the JVM of the transaction
+            throw new ConfigException(
+                    "key_service: local is not opened in this process. key_service: local requires an executor running tasks in the process of the transaction; use a key service on the network");
+        }
+        if (task.getKeep().getMode() != Keep.Mode.FIRST) {
+            // task_count tasks never finish in a process running only some of them
+            throw new ConfigException(String.format(
+                    "keep: %s requires an executor running tasks in the process of the transaction.", task.getKeep()));
+        }
+
+        final DistinctState processState = openProcessState(task, inputSchema);
+        final PageOutput pageOutput;
+        try {
+            pageOutput = new DistinctFilterPageOutput(task, processState, inputSchema, outputSchema, output);
+        }
+        catch (RuntimeException e) {
+            closeProcessState(processState);
+            throw e;
+        }
+        return new PageOutput()
+        {
+            @Override
+            public void add(Page page)
+            {
+                pageOutput.add(page);
+            }
+
+            @Override
+            public void finish()
+            {
+                pageOutput.finish();
+            }
+
+            @Override
+            public void close()
+            {
+                try {
+                    pageOutput.close();
+                }
+                finally {
+                    closeProcessState(processState);
+                }
+            }
+        };
     }
 
-    private List<Column> convertNameToColumn(Schema inputSchema, List<String> columnNames)
+    // a name like payload.$.event_id refers to a path in a json column, unless a column has that name
+    private List<Column> convertNameToColumn(Schema inputSchema, List<String> columnNames,
+                                             Map<String, List<KeyTransform>> keyTransformsByName,
+                                             List<String> jsonPaths, List<List<KeyTransform>> keyTransforms)
     {
+        for (String name : keyTransformsByName.keySet()) {
+            if (!columnNames.contains(name)) {
+                throw new ConfigException(String.format("key_transforms: '%s' is not one of columns.", name));
+            }
+        }
+
         ImmutableList.Builder<Column> builder = ImmutableList.builder();
         for (String columnName : columnNames) {
+            List<KeyTransform> transforms = keyTransformsByName.containsKey(columnName)
+                    ? keyTransformsByName.get(columnName) : ImmutableList.<KeyTransform>of();
+            String name = columnName;
+            String jsonPath = JsonPath.ROOT;
+            int pathStart = columnName.indexOf(".$");
+            if (pathStart > 0 && !hasColumn(inputSchema, columnName)) {
+                name = columnName.substring(0, pathStart);
+                jsonPath = columnName.substring(pathStart + 1);
+                JsonPath.parse(jsonPath);
+            }
             for (Column column : inputSchema.getColumns()) {
-                if (columnName.contentEquals(column.getName())) {
+                if (name.contentEquals(column.getName())) {
+                    if (!jsonPath.equals(JsonPath.ROOT) && !Types.JSON.equals(column.getType())) {
+                        throw new ConfigException(String.format(
+                                "columns: '%s' refers to a path in column '%s', which is not a json column.", columnName, name));
+                    }
+                    checkKeyTransforms(columnName, column, jsonPath, transforms);
                     builder.add(column);
+                    jsonPaths.add(jsonPath);
+                    keyTransforms.add(transforms);
                 }
             }
         }
 
         return builder.build();
     }
+
+    private static void checkKeyTransforms(String columnName, Column column, String jsonPath, List<KeyTransform> transforms)
+    {
+        Set<KeyTransform.Kind> kinds = EnumSet.noneOf(KeyTransform.Kind.class);
+        for (KeyTransform transform : transforms) {
+            if (!jsonPath.equals(JsonPath.ROOT) || !transform.appliesTo(column.getType())) {
+                throw new ConfigException(String.format(
+                        "key_transforms: %s can not transform '%s' of type %s.", transform, columnName,
+                        jsonPath.equals(JsonPath.ROOT) ? column.getType() : "json"));
+            }
+            if (!kinds.add(transform.getKind())) {
+                throw new ConfigException(String.format(
+                        "key_transforms: '%s' has more than one %s.", columnName, transform.getKind().name().toLowerCase(Locale.ENGLISH)));
+            }
+        }
+    }
+
+    private static boolean hasColumn(Schema inputSchema, String name)
+    {
+        for (Column column : inputSchema.getColumns()) {
+            if (name.equals(column.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -0,0 +1,194 @@
+package org.embulk.filter.distinct;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.embulk.filter.distinct.DistinctFilterPlugin.PluginTask;
+import org.embulk.spi.Schema;
+
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The state of a transaction shared by its tasks: the distinct keys, the keys of earlier runs
+ * when state_path is configured, the spilled records when a memory budget is configured, and
+ * the file of dropped records when duplicates_file is configured.
+ * A single primitive distinct column is kept by a {@link PrimitiveKeyStore} instead of key stores,
+ * and the winning records of keep other than first are kept by a {@link KeepState}.
+ * input_sorted needs none of them.
+ */
+class DistinctState
+{
+    private final PrimitiveKeyStore primitiveKeys;
+    private final KeyStore keys;
+    private final KeyStore store;
+    private final StateStore stateStore;
+    private final SpillManager spillManager;
+    private final long memoryBudget;
+    private final ExecutorService workerPool;
+    private final KeepState keepState;
+    private final DuplicatesWriter duplicatesWriter;
+    private final DistinctStats totals = new DistinctStats();
+    private final boolean ownsTransaction;
+    // the outputs using the state in a process other than the transaction's
+    private int openOutputs;
+
+    /**
+     * @param stateStore the keys of earlier runs opened by the transaction, or null without state_path
+     * @param ownsTransaction true in the process of the transaction, false in another process running its tasks
+     */
+    DistinctState(PluginTask task, Schema inputSchema, StateStore stateStore, boolean ownsTransaction)
+    {
+        this.ownsTransaction = ownsTransaction;
+        // sorted input is deduplicated by comparing adjacent keys
+        boolean keepFirst = task.getKeep().getMode() == Keep.Mode.FIRST && !task.getInputSorted();
+        this.primitiveKeys = keepFirst ? PrimitiveKeyStore.create(task) : null;
+        this.keys = keepFirst && primitiveKeys == null ? KeyStores.create(task) : null;
+        this.stateStore = stateStore;
+        this.store = stateStore != null ? new StatefulKeyStore(keys, stateStore) : keys;
+        // the other memory policies are enforced by the key store
+        if (task.getMemoryBudget().isPresent() && task.getMemoryPolicy() == MemoryPolicy.SPILL) {
+            this.memoryBudget = task.getMemoryBudget().get().getBytes();
+            this.spillManager = new SpillManager(
+                    Paths.get(task.getSpillDir().or(System.getProperty("java.io.tmpdir"))),
+                    task.getSpillPartitions());
+        }
+        else {
+            this.memoryBudget = Long.MAX_VALUE;
+            this.spillManager = null;
+        }
+        this.keepState = task.getKeep().getMode() == Keep.Mode.FIRST ? null
+                : new KeepState(task.getKeep().getMode(), task.getTaskCount().get(), task.getShards(), spillManager, memoryBudget);
+        this.duplicatesWriter = task.getDuplicatesFile().isPresent()
+                ? new DuplicatesWriter(Paths.get(task.getDuplicatesFile().get()), inputSchema, !ownsTransaction) : null;
+        if (task.getAsync()) {
+            int workers = task.getAsyncWorkers().or(Runtime.getRuntime().availableProcessors());
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactoryBuilder().setNameFormat("embulk-filter-distinct-%d").setDaemon(true).build());
+            // idle workers exit, so a finished run leaves no threads behind
+            pool.allowCoreThreadTimeOut(true);
+            this.workerPool = pool;
+        }
+        else {
+            this.workerPool = null;
+        }
+    }
+
+    synchronized void retain()
+    {
+        openOutputs++;
+    }
+
+    /**
+     * @return true if no output uses the state any more
+     */
+    synchronized boolean release()
+    {
+        return --openOutputs == 0;
+    }
+
+    /**
+     * Stops the workers, deletes the spill files, closes duplicates_file and disconnects from
+     * key_service, releasing its keys in the process of the transaction; the other keys are
+     * freed with the state.
+     */
+    void close()
+    {
+        if (keys instanceof KeyServiceKeyStore) {
+            if (ownsTransaction) {
+                ((KeyServiceKeyStore) keys).release();
+            }
+            else {
+                ((KeyServiceKeyStore) keys).close();
+            }
+        }
+        if (workerPool != null) {
+            workerPool.shutdown();
+        }
+        if (spillManager != null) {
+            spillManager.close();
+        }
+        if (duplicatesWriter != null) {
+            duplicatesWriter.close();
+        }
+    }
+
+    /**
+     * @return the totals counted by the tasks of the transaction
+     */
+    DistinctStats getTotals()
+    {
+        return totals;
+    }
+
+    /**
+     * @return the store of a single primitive distinct column, or null if keys are encoded
+     */
+    PrimitiveKeyStore getPrimitiveKeys()
+    {
+        return primitiveKeys;
+    }
+
+    /**
+     * @return the store of encoded keys, or null if {@link #getPrimitiveKeys} is used
+     */
+    KeyStore getStore()
+    {
+        return store;
+    }
+
+    /**
+     * @return the keys of earlier runs, or null without state_path
+     */
+    StateStore getStateStore()
+    {
+        return stateStore;
+    }
+
+    /**
+     * @return the store of the keys of this run, without the keys of earlier runs
+     */
+    KeyStore getKeys()
+    {
+        return keys;
+    }
+
+    /**
+     * @return the spill manager, or null if memory_budget is not configured or memory_policy is not spill
+     */
+    SpillManager getSpillManager()
+    {
+        return spillManager;
+    }
+
+    /**
+     * @return the winning records of keep other than first, or null for keep: first
+     */
+    KeepState getKeepState()
+    {
+        return keepState;
+    }
+
+    /**
+     * @return the workers deciding records, or null if async is disabled
+     */
+    ExecutorService getWorkerPool()
+    {
+        return workerPool;
+    }
+
+    /**
+     * @return the writer of dropped records, or null if duplicates_file is not configured
+     */
+    DuplicatesWriter getDuplicatesWriter()
+    {
+        return duplicatesWriter;
+    }
+
+    long getMemoryBudget()
+    {
+        return memoryBudget;
+    }
+}
@@ -0,0 +1,230 @@
+package org.embulk.filter.distinct;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Counters of the records decided by the plugin, cheap enough for the hot path.
+ *
+ * A task counts into its own instance without synchronization and merges what it counted
+ * since the last merge into the totals of the transaction once per page. Decision latency
+ * is sampled every {@link #LATENCY_SAMPLE_INTERVAL}th record into a histogram of power of
+ * two buckets. The state of the key store is recorded as gauges when a task finishes, and the
+ * totals hold the reading of the task that finished last.
+ */
+class DistinctStats
+        implements DistinctStatsMXBean
+{
+    static final int LATENCY_SAMPLE_INTERVAL = 64;
+
+    enum Metric
+    {
+        INPUT_PAGES(false),
+        FORWARDED_PAGES(false),
+        INPUT_RECORDS(false),
+        OUTPUT_RECORDS(false),
+        DISTINCT_KEYS(true),
+        ESTIMATED_BYTES(true),
+        REHASHES(true),
+        SPILLED_RECORDS(true);
+
+        private final boolean gauge;
+
+        Metric(boolean gauge)
+        {
+            this.gauge = gauge;
+        }
+
+        @Override
+        public String toString()
+        {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    private final long[] values = new long[Metric.values().length];
+    private final long[] latencies = new long[64];
+    // set once the task recorded its gauges
+    private boolean gaugesRecorded;
+    // what was merged into the totals so far
+    private long[] mergedValues;
+    private long[] mergedLatencies;
+
+    void add(Metric metric, long delta)
+    {
+        values[metric.ordinal()] += delta;
+    }
+
+    /**
+     * Records a gauge; its reading replaces the totals' one when merged.
+     */
+    void set(Metric metric, long value)
+    {
+        values[metric.ordinal()] = value;
+        gaugesRecorded = true;
+    }
+
+    synchronized long get(Metric metric)
+    {
+        return values[metric.ordinal()];
+    }
+
+    /**
+     * Records a sampled decision; may be called from a worker deciding for the task.
+     */
+    synchronized void recordLatency(long nanos)
+    {
+        latencies[63 - Long.numberOfLeadingZeros(Math.max(nanos, 1))]++;
+    }
+
+    /**
+     * Adds what this task counted since the last merge to the totals.
+     */
+    void mergeInto(DistinctStats totals)
+    {
+        if (mergedValues == null) {
+            mergedValues = new long[values.length];
+            mergedLatencies = new long[latencies.length];
+        }
+        long[] currentLatencies;
+        synchronized (this) {
+            currentLatencies = latencies.clone();
+        }
+        synchronized (totals) {
+            for (Metric metric : Metric.values()) {
+                int i = metric.ordinal();
+                if (metric.gauge) {
+                    // gauges describe the shared store, which may shrink, e.g. by window
+                    // eviction; the latest reading wins, and a task merging before it
+                    // recorded its gauges leaves the totals' reading as is
+                    if (gaugesRecorded) {
+                        totals.values[i] = values[i];
+                    }
+                }
+                else {
+                    totals.values[i] += values[i] - mergedValues[i];
+                }
+            }
+            for (int i = 0; i < latencies.length; i++) {
+                totals.latencies[i] += currentLatencies[i] - mergedLatencies[i];
+            }
+        }
+        System.arraycopy(values, 0, mergedValues, 0, values.length);
+        System.arraycopy(currentLatencies, 0, mergedLatencies, 0, latencies.length);
+    }
+
+    /**
+     * @return the upper bound in nanoseconds of the bucket holding the percentile of the sampled decisions, or 0
+     */
+    synchronized long latencyPercentile(double percentile)
+    {
+        long samples = 0;
+        for (long count : latencies) {
+            samples += count;
+        }
+        if (samples == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(samples * percentile);
+        long seen = 0;
+        for (int i = 0; i < latencies.length; i++) {
+            seen += latencies[i];
+            if (seen >= Math.max(rank, 1)) {
+                return i >= 62 ? Long.MAX_VALUE : (2L << i) - 1;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    synchronized Map<String, Object> toMap()
+    {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (Metric metric : Metric.values()) {
+            map.put(metric.toString(), values[metric.ordinal()]);
+        }
+        map.put("dropped_records", getDroppedRecords());
+        map.put("decision_latency_p50_nanos", latencyPercentile(0.5));
+        map.put("decision_latency_p99_nanos", latencyPercentile(0.99));
+        map.put("decision_latency_histogram", Arrays.asList(toBoxed(latencies)));
+        return map;
+    }
+
+    String summary()
+    {
+        return String.format("input records: %d, output records: %d, dropped records: %d, pages forwarded unchanged: %d of %d, "
+                        + "distinct keys: %d, estimated bytes: %d, rehashes: %d, spilled records: %d, "
+                        + "decision latency (sampled) p50: %dns, p99: %dns",
+                getInputRecords(), getOutputRecords(), getDroppedRecords(),
+                get(Metric.FORWARDED_PAGES), get(Metric.INPUT_PAGES),
+                getDistinctKeys(), getEstimatedBytes(), getRehashes(), getSpilledRecords(),
+                latencyPercentile(0.5), latencyPercentile(0.99));
+    }
+
+    @Override
+    public long getInputRecords()
+    {
+        return get(Metric.INPUT_RECORDS);
+    }
+
+    @Override
+    public long getOutputRecords()
+    {
+        return get(Metric.OUTPUT_RECORDS);
+    }
+
+    /**
+     * @return the records not emitted so far, including the records waiting in spill files or for keep
+     */
+    @Override
+    public synchronized long getDroppedRecords()
+    {
+        return values[Metric.INPUT_RECORDS.ordinal()] - values[Metric.OUTPUT_RECORDS.ordinal()];
+    }
+
+    @Override
+    public long getDistinctKeys()
+    {
+        return get(Metric.DISTINCT_KEYS);
+    }
+
+    @Override
+    public long getEstimatedBytes()
+    {
+        return get(Metric.ESTIMATED_BYTES);
+    }
+
+    @Override
+    public long getRehashes()
+    {
+        return get(Metric.REHASHES);
+    }
+
+    @Override
+    public long getSpilledRecords()
+    {
+        return get(Metric.SPILLED_RECORDS);
+    }
+
+    @Override
+    public long getDecisionLatencyP50Nanos()
+    {
+        return latencyPercentile(0.5);
+    }
+
+    @Override
+    public long getDecisionLatencyP99Nanos()
+    {
+        return latencyPercentile(0.99);
+    }
+
+    private static Long[] toBoxed(long[] values)
+    {
+        Long[] boxed = new Long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            boxed[i] = values[i];
+        }
+        return boxed;
+    }
+}
@@ -0,0 +1,25 @@
+package org.embulk.filter.distinct;
+
+/**
+ * The totals of a running transaction, registered when jmx is enabled.
+ */
+public interface DistinctStatsMXBean
+{
+    long getInputRecords();
+
+    long getOutputRecords();
+
+    long getDroppedRecords();
+
+    long getDistinctKeys();
+
+    long getEstimatedBytes();
+
+    long getRehashes();
+
+    long getSpilledRecords();
+
+    long getDecisionLatencyP50Nanos();
+
+    long getDecisionLatencyP99Nanos();
+}
@@ -0,0 +1,209 @@
+package org.embulk.filter.distinct;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.ColumnVisitor;
+import org.embulk.spi.DataException;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes the records dropped as duplicates to a CSV file with a header of the input columns.
+ *
+ * Every task formats the duplicates of a page into its own {@link Rows} and appends them at
+ * once, so the tasks of the transaction share the file and take its lock once per page.
+ * A process running tasks of a transaction of another process appends to its own file.
+ * Fields are quoted as RFC 4180 when needed and nulls are empty; timestamps are written as
+ * {@code Timestamp#toString} and json values as json.
+ */
+class DuplicatesWriter
+{
+    private final Path path;
+    private final Writer writer;
+    private long records;
+
+    /**
+     * @param append true to append to an existing file, whose header was already written
+     */
+    DuplicatesWriter(Path path, Schema schema, boolean append)
+    {
+        this.path = path;
+        try {
+            Path parent = path.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            boolean header = !append || !Files.exists(path) || Files.size(path) == 0;
+            this.writer = append
+                    ? Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)
+                    : Files.newBufferedWriter(path, StandardCharsets.UTF_8);
+            if (header) {
+                writeHeader(schema);
+            }
+        }
+        catch (IOException e) {
+            throw new DataException("failed to open duplicates_file: " + path, e);
+        }
+    }
+
+    private void writeHeader(Schema schema)
+            throws IOException
+    {
+        StringBuilder header = new StringBuilder();
+        for (Column column : schema.getColumns()) {
+            if (column.getIndex() > 0) {
+                header.append(',');
+            }
+            appendField(header, column.getName());
+        }
+        writer.append(header).append("\r\n");
+    }
+
+    synchronized void write(Rows rows)
+    {
+        if (rows.count == 0) {
+            return;
+        }
+        try {
+            writer.append(rows.builder);
+        }
+        catch (IOException e) {
+            throw new DataException("failed to write duplicates_file: " + path, e);
+        }
+        records += rows.count;
+        rows.clear();
+    }
+
+    /**
+     * @return the number of records written
+     */
+    synchronized long getRecords()
+    {
+        return records;
+    }
+
+    synchronized void close()
+    {
+        try {
+            writer.close();
+        }
+        catch (IOException e) {
+            throw new DataException("failed to close duplicates_file: " + path, e);
+        }
+    }
+
+    private static void appendField(StringBuilder builder, String value)
+    {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        if (!quote) {
+            builder.append(value);
+            return;
+        }
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                builder.append('"');
+            }
+            builder.append(c);
+        }
+        builder.append('"');
+    }
+
+    /**
+     * The duplicates of a page formatted by a task, before they are appended to the file.
+     */
+    static class Rows
+            implements ColumnVisitor
+    {
+        private final Schema schema;
+        private final StringBuilder builder = new StringBuilder();
+        private PageReader reader;
+        private int count;
+
+        Rows(Schema schema)
+        {
+            this.schema = schema;
+        }
+
+        void add(PageReader reader)
+        {
+            this.reader = reader;
+            schema.visitColumns(this);
+            builder.append("\r\n");
+            count++;
+        }
+
+        void clear()
+        {
+            builder.setLength(0);
+            count = 0;
+        }
+
+        private boolean startField(Column column)
+        {
+            if (column.getIndex() > 0) {
+                builder.append(',');
+            }
+            return !reader.isNull(column);
+        }
+
+        @Override
+        public void booleanColumn(Column column)
+        {
+            if (startField(column)) {
+                builder.append(reader.getBoolean(column));
+            }
+        }
+
+        @Override
+        public void longColumn(Column column)
+        {
+            if (startField(column)) {
+                builder.append(reader.getLong(column));
+            }
+        }
+
+        @Override
+        public void doubleColumn(Column column)
+        {
+            if (startField(column)) {
+                builder.append(reader.getDouble(column));
+            }
+        }
+
+        @Override
+        public void stringColumn(Column column)
+        {
+            if (startField(column)) {
+                appendField(builder, reader.getString(column));
+            }
+        }
+
+        @Override
+        public void timestampColumn(Column column)
+        {
+            if (startField(column)) {
+                appendField(builder, reader.getTimestamp(column).toString());
+            }
+        }
+
+        @Override
+        public void jsonColumn(Column column)
+        {
+            if (startField(column)) {
+                appendField(builder, reader.getJson(column).toJson());
+            }
+        }
+    }
+}
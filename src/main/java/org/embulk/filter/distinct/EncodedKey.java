@@ -0,0 +1,87 @@
+package org.embulk.filter.distinct;
+
+import java.util.Arrays;
+
+/**
+ * A distinct key encoded by {@link KeyEncoder}, compared by its bytes.
+ *
+ * Stored keys own an exactly sized array. A probe key can wrap the encoder's buffer
+ * to look up the set without copying; it must not be kept after the next record.
+ */
+final class EncodedKey
+{
+    private final byte[] bytes;
+    private final int length;
+    private final int hash;
+
+    private EncodedKey(byte[] bytes, int length)
+    {
+        this(bytes, length, hash(bytes, length));
+    }
+
+    private EncodedKey(byte[] bytes, int length, int hash)
+    {
+        this.bytes = bytes;
+        this.length = length;
+        this.hash = hash;
+    }
+
+    static EncodedKey copyOf(byte[] bytes, int length)
+    {
+        return new EncodedKey(Arrays.copyOf(bytes, length), length);
+    }
+
+    static EncodedKey probe(byte[] bytes, int length)
+    {
+        return new EncodedKey(bytes, length);
+    }
+
+    /**
+     * @param hash the {@link #hashCode} of the key, computed before
+     */
+    static EncodedKey probe(byte[] bytes, int length, int hash)
+    {
+        return new EncodedKey(bytes, length, hash);
+    }
+
+    int getLength()
+    {
+        return length;
+    }
+
+    static int hash(byte[] bytes, int length)
+    {
+        int h = 1;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + bytes[i];
+        }
+        return h;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof EncodedKey)) {
+            return false;
+        }
+        EncodedKey other = (EncodedKey) obj;
+        if (hash != other.hash || length != other.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] != other.bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
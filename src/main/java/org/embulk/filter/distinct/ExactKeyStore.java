@@ -0,0 +1,183 @@
+package org.embulk.filter.distinct;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Keeps every encoded key, so different values never collide.
+ *
+ * Keys are spread over shards selected by the key hash. Each shard is a plain hash set
+ * guarded by its own lock, so tasks rarely wait for each other and a shard resizes
+ * without stalling the others.
+ */
+class ExactKeyStore
+        implements KeyStore
+{
+    // EncodedKey, its array header and a HashMap node with its table slot
+    private static final int ENTRY_OVERHEAD = 88;
+
+    private final Shard[] shards;
+
+    ExactKeyStore(int shardCount)
+    {
+        this(shardCount, 0, 0.75f);
+    }
+
+    /**
+     * @param expectedKeys the number of keys to hold without rehashing, or 0 to start small
+     * @param loadFactor the ratio of held keys to buckets that triggers a rehash
+     */
+    ExactKeyStore(int shardCount, long expectedKeys, float loadFactor)
+    {
+        this.shards = new Shard[shardCount];
+        int expectedKeysPerShard = (int) Math.min((expectedKeys + shardCount - 1) / shardCount, 1 << 30);
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(expectedKeysPerShard, loadFactor);
+        }
+    }
+
+    @Override
+    public boolean add(byte[] key, int length)
+    {
+        EncodedKey probe = EncodedKey.probe(key, length);
+        Shard shard = shardOf(probe);
+        synchronized (shard) {
+            if (shard.keys.contains(probe)) {
+                return false;
+            }
+            shard.keys.add(EncodedKey.copyOf(key, length));
+            shard.added(length);
+            return true;
+        }
+    }
+
+    @Override
+    public void addAbsent(byte[] key, int length)
+    {
+        EncodedKey copy = EncodedKey.copyOf(key, length);
+        Shard shard = shardOf(copy);
+        synchronized (shard) {
+            if (shard.keys.add(copy)) {
+                shard.added(length);
+            }
+        }
+    }
+
+    @Override
+    public void addAll(KeyBatch batch, boolean[] added)
+    {
+        for (int i = 0; i < batch.size(); i++) {
+            int hash = EncodedKey.hash(batch.key(i), batch.length(i));
+            batch.hashes[i] = hash;
+            batch.shards[i] = shardIndexOf(hash);
+        }
+        batch.groupByShard(shards.length);
+        for (int s = 0; s < shards.length; s++) {
+            int start = batch.shardStarts[s];
+            int end = batch.shardStarts[s + 1];
+            if (start == end) {
+                continue;
+            }
+            Shard shard = shards[s];
+            synchronized (shard) {
+                for (int j = start; j < end; j++) {
+                    int i = batch.order[j];
+                    EncodedKey probe = EncodedKey.probe(batch.key(i), batch.length(i), batch.hashes[i]);
+                    if (shard.keys.contains(probe)) {
+                        added[i] = false;
+                    }
+                    else {
+                        shard.keys.add(EncodedKey.copyOf(batch.key(i), batch.length(i)));
+                        shard.added(batch.length(i));
+                        added[i] = true;
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean contains(byte[] key, int length)
+    {
+        EncodedKey probe = EncodedKey.probe(key, length);
+        Shard shard = shardOf(probe);
+        synchronized (shard) {
+            return shard.keys.contains(probe);
+        }
+    }
+
+    @Override
+    public long size()
+    {
+        long size = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                size += shard.keys.size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public long estimatedBytes()
+    {
+        long bytes = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                bytes += shard.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public long rehashes()
+    {
+        long rehashes = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                rehashes += shard.rehashes;
+            }
+        }
+        return rehashes;
+    }
+
+    private Shard shardOf(EncodedKey key)
+    {
+        return shards[shardIndexOf(key.hashCode())];
+    }
+
+    private int shardIndexOf(int hashCode)
+    {
+        // the sets index by the low bits of hashCode, so shards are selected by mixed high bits
+        return KeyStores.shardOf(Murmur3.fmix64(hashCode), shards.length);
+    }
+
+    private static final class Shard
+    {
+        private final Set<EncodedKey> keys;
+        private final float loadFactor;
+        private long bytes;
+        // the table size of the set, to count its resizes
+        private int capacity;
+        private long rehashes;
+
+        Shard(int expectedKeys, float loadFactor)
+        {
+            int initialCapacity = expectedKeys > 0 ? (int) Math.min(Math.ceil(expectedKeys / loadFactor) + 1, 1 << 30) : 16;
+            this.keys = new HashSet<>(initialCapacity, loadFactor);
+            this.loadFactor = loadFactor;
+            this.capacity = Math.max(Integer.highestOneBit(initialCapacity - 1) << 1, 1);
+        }
+
+        void added(int length)
+        {
+            bytes += ENTRY_OVERHEAD + length;
+            // the set doubles its table as HashMap does once the load factor is exceeded
+            if (keys.size() > capacity * loadFactor && capacity < 1 << 30) {
+                capacity <<= 1;
+                rehashes++;
+            }
+        }
+    }
+}
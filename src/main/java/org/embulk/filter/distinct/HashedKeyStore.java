@@ -0,0 +1,149 @@
+package org.embulk.filter.distinct;
+
+/**
+ * Keeps only a 64-bit or 128-bit Murmur3 fingerprint of each encoded key
+ * in primitive tables, trading a tiny collision probability for memory.
+ *
+ * Fingerprints are spread over shards selected by their high bits. Each shard is
+ * an independently sized table guarded by its own lock.
+ */
+class HashedKeyStore
+        implements KeyStore
+{
+    private final int bits;
+    private final LongHashSet[] shards;
+
+    /**
+     * @param expectedKeys the number of keys to hold without rehashing, or 0 to start small
+     * @param loadFactor the ratio of held keys to slots that triggers a rehash
+     */
+    HashedKeyStore(int bits, int shardCount, long expectedKeys, double loadFactor)
+    {
+        if (bits != 64 && bits != 128) {
+            throw new IllegalArgumentException("bits must be 64 or 128: " + bits);
+        }
+        this.bits = bits;
+        this.shards = new LongHashSet[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new LongHashSet(bits / 64, (expectedKeys + shardCount - 1) / shardCount, loadFactor);
+        }
+    }
+
+    @Override
+    public boolean add(byte[] key, int length)
+    {
+        long[] hash = Murmur3.hash128(key, length);
+        LongHashSet shard = shardOf(hash[0]);
+        synchronized (shard) {
+            if (bits == 64) {
+                return shard.add(hash[0]);
+            }
+            else {
+                return shard.add(hash[0], hash[1]);
+            }
+        }
+    }
+
+    @Override
+    public void addAbsent(byte[] key, int length)
+    {
+        add(key, length);
+    }
+
+    @Override
+    public void addAll(KeyBatch batch, boolean[] added)
+    {
+        for (int i = 0; i < batch.size(); i++) {
+            long[] hash = Murmur3.hash128(batch.key(i), batch.length(i));
+            batch.hashes1[i] = hash[0];
+            batch.hashes2[i] = hash[1];
+            batch.shards[i] = KeyStores.shardOf(hash[0], shards.length);
+        }
+        batch.groupByShard(shards.length);
+        for (int s = 0; s < shards.length; s++) {
+            int start = batch.shardStarts[s];
+            int end = batch.shardStarts[s + 1];
+            if (start == end) {
+                continue;
+            }
+            LongHashSet shard = shards[s];
+            synchronized (shard) {
+                for (int j = start; j < end; j++) {
+                    int i = batch.order[j];
+                    if (bits == 64) {
+                        added[i] = shard.add(batch.hashes1[i]);
+                    }
+                    else {
+                        added[i] = shard.add(batch.hashes1[i], batch.hashes2[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean contains(byte[] key, int length)
+    {
+        long[] hash = Murmur3.hash128(key, length);
+        LongHashSet shard = shardOf(hash[0]);
+        synchronized (shard) {
+            if (bits == 64) {
+                return shard.contains(hash[0]);
+            }
+            else {
+                return shard.contains(hash[0], hash[1]);
+            }
+        }
+    }
+
+    @Override
+    public long size()
+    {
+        long size = 0;
+        for (LongHashSet shard : shards) {
+            synchronized (shard) {
+                size += shard.size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public long estimatedBytes()
+    {
+        long bytes = 0;
+        for (LongHashSet shard : shards) {
+            synchronized (shard) {
+                bytes += shard.estimatedBytes();
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public long rehashes()
+    {
+        long rehashes = 0;
+        for (LongHashSet shard : shards) {
+            synchronized (shard) {
+                rehashes += shard.rehashes();
+            }
+        }
+        return rehashes;
+    }
+
+    /**
+     * @return the probability that at least two of the held keys share a fingerprint,
+     * by the birthday bound {@code 1 - exp(-n(n-1) / 2^(bits+1))}
+     */
+    double collisionProbability()
+    {
+        double n = size();
+        return -Math.expm1(-n * (n - 1) / Math.pow(2, bits + 1));
+    }
+
+    private LongHashSet shardOf(long hash)
+    {
+        return shards[KeyStores.shardOf(hash, shards.length)];
+    }
+}
@@ -0,0 +1,139 @@
+package org.embulk.filter.distinct;
+
+import org.embulk.config.ConfigException;
+import org.msgpack.value.ArrayValue;
+import org.msgpack.value.ImmutableValue;
+import org.msgpack.value.Value;
+import org.msgpack.value.ValueFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A path to a value in a json column: {@code $} followed by {@code .name}, {@code ['name']}
+ * or {@code [index]} steps, e.g. {@code $.event.id} or {@code $.tags[0]}.
+ *
+ * The value is looked up by walking the map entries and array elements of the path only,
+ * so the rest of the document is neither copied nor encoded.
+ */
+final class JsonPath
+{
+    static final String ROOT = "$";
+
+    private final String path;
+    // a map key as a string value, or an array index as an Integer
+    private final Object[] steps;
+
+    private JsonPath(String path, Object[] steps)
+    {
+        this.path = path;
+        this.steps = steps;
+    }
+
+    static JsonPath parse(String path)
+    {
+        if (!path.startsWith(ROOT)) {
+            throw invalid(path, "a path starts with '$'");
+        }
+        List<Object> steps = new ArrayList<>();
+        int i = 1;
+        while (i < path.length()) {
+            char c = path.charAt(i);
+            if (c == '.') {
+                int end = i + 1;
+                while (end < path.length() && path.charAt(end) != '.' && path.charAt(end) != '[') {
+                    end++;
+                }
+                if (end == i + 1) {
+                    throw invalid(path, "a name follows '.'");
+                }
+                steps.add(ValueFactory.newString(path.substring(i + 1, end)));
+                i = end;
+            }
+            else if (c == '[') {
+                int end = path.indexOf(']', i);
+                if (end < 0) {
+                    throw invalid(path, "'[' is closed by ']'");
+                }
+                String step = path.substring(i + 1, end);
+                if (step.length() >= 2 && step.startsWith("'") && step.endsWith("'")) {
+                    steps.add(ValueFactory.newString(step.substring(1, step.length() - 1)));
+                }
+                else {
+                    try {
+                        steps.add(Integer.parseInt(step));
+                    }
+                    catch (NumberFormatException e) {
+                        throw invalid(path, "'[]' holds an array index or a quoted name");
+                    }
+                    if ((Integer) steps.get(steps.size() - 1) < 0) {
+                        throw invalid(path, "array indexes are not negative");
+                    }
+                }
+                i = end + 1;
+            }
+            else {
+                throw invalid(path, "steps start with '.' or '['");
+            }
+        }
+        return new JsonPath(path, steps.toArray());
+    }
+
+    private static ConfigException invalid(String path, String reason)
+    {
+        return new ConfigException(String.format("Invalid json path '%s': %s", path, reason));
+    }
+
+    boolean isRoot()
+    {
+        return steps.length == 0;
+    }
+
+    /**
+     * @return the value at the path, or null if the document has no value there
+     */
+    Value find(Value value)
+    {
+        for (Object step : steps) {
+            if (step instanceof Integer) {
+                if (!value.isArrayValue()) {
+                    return null;
+                }
+                ArrayValue array = value.asArrayValue();
+                int index = (Integer) step;
+                if (index >= array.size()) {
+                    return null;
+                }
+                value = array.get(index);
+            }
+            else {
+                if (!value.isMapValue()) {
+                    return null;
+                }
+                value = get(value, (ImmutableValue) step);
+                if (value == null) {
+                    return null;
+                }
+            }
+        }
+        return value;
+    }
+
+    // compares the keys in place; building the map of a large document would copy every entry
+    private static Value get(Value map, ImmutableValue name)
+    {
+        for (Map.Entry<Value, Value> entry : map.asMapValue().entrySet()) {
+            if (name.equals(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString()
+    {
+        return path;
+    }
+}
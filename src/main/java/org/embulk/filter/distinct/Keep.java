@@ -0,0 +1,77 @@
+package org.embulk.filter.distinct;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+import com.google.common.base.Optional;
+import org.embulk.config.ConfigException;
+
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Which record of a key is kept: {@code first}, {@code last}, {@code max_by(column)} or {@code min_by(column)}.
+ */
+public class Keep
+{
+    public enum Mode
+    {
+        FIRST,
+        LAST,
+        MAX_BY,
+        MIN_BY
+    }
+
+    private static final Pattern BY_PATTERN = Pattern.compile("\\s*(max_by|min_by)\\s*\\(\\s*(.+?)\\s*\\)\\s*");
+
+    private final Mode mode;
+    private final Optional<String> columnName;
+
+    private Keep(Mode mode, Optional<String> columnName)
+    {
+        this.mode = mode;
+        this.columnName = columnName;
+    }
+
+    @JsonCreator
+    public static Keep fromString(String value)
+    {
+        String trimmed = value.trim();
+        if (trimmed.equals("first")) {
+            return new Keep(Mode.FIRST, Optional.<String>absent());
+        }
+        else if (trimmed.equals("last")) {
+            return new Keep(Mode.LAST, Optional.<String>absent());
+        }
+        Matcher matcher = BY_PATTERN.matcher(trimmed);
+        if (matcher.matches()) {
+            Mode mode = Mode.valueOf(matcher.group(1).toUpperCase(Locale.ENGLISH));
+            return new Keep(mode, Optional.of(matcher.group(2)));
+        }
+        throw new ConfigException(String.format(
+                "Unknown keep '%s'. Supported keep are first, last, max_by(column), min_by(column)", value));
+    }
+
+    public Mode getMode()
+    {
+        return mode;
+    }
+
+    /**
+     * @return the column of max_by and min_by
+     */
+    public Optional<String> getColumnName()
+    {
+        return columnName;
+    }
+
+    @JsonValue
+    @Override
+    public String toString()
+    {
+        if (columnName.isPresent()) {
+            return String.format("%s(%s)", mode.name().toLowerCase(Locale.ENGLISH), columnName.get());
+        }
+        return mode.name().toLowerCase(Locale.ENGLISH);
+    }
+}
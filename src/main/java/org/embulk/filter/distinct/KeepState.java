@@ -0,0 +1,290 @@
+package org.embulk.filter.distinct;
+
+import org.embulk.spi.DataException;
+import org.embulk.spi.Exec;
+import org.embulk.spi.PageBuilder;
+import org.slf4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the winning record of every key for keep: last, max_by and min_by.
+ *
+ * A winner is kept as its encoded row, the encoded ordering value and the sequence number
+ * of its arrival. Nothing is emitted while records arrive; the output finishing the last of
+ * task_count tasks emits the winners once. Outputs open and close one after another when tasks
+ * outnumber threads, so the outputs open at a time do not tell whether more tasks will come.
+ *
+ * When a memory budget is configured and reached, records of keys not held in memory are
+ * spilled and their winners are chosen partition by partition when the winners are emitted.
+ */
+class KeepState
+{
+    private static final Logger logger = Exec.getLogger(KeepState.class);
+    // EncodedKey, Winner, their arrays and a HashMap node with its table slot
+    private static final int ENTRY_OVERHEAD = 160;
+
+    private final Keep.Mode mode;
+    private final Shard[] shards;
+    private final SpillManager spillManager;
+    private final long memoryBudget;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong keys = new AtomicLong();
+    private final Object emitLock = new Object();
+    private final int taskCount;
+    private int finishedTasks;
+    private volatile boolean winnersEmitted;
+
+    /**
+     * @param taskCount the number of tasks of the transaction
+     * @param spillManager where records are spilled over the memory budget, or null
+     */
+    KeepState(Keep.Mode mode, int taskCount, int shardCount, SpillManager spillManager, long memoryBudget)
+    {
+        this.mode = mode;
+        this.taskCount = taskCount;
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard();
+        }
+        this.spillManager = spillManager;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * @return true if the caller finished the last task and must emit the winners
+     */
+    synchronized boolean finishTask()
+    {
+        if (++finishedTasks > taskCount) {
+            throw tooManyTasks();
+        }
+        return finishedTasks == taskCount;
+    }
+
+    /**
+     * Fails when fewer than task_count tasks finished, so that the winners, which were never
+     * emitted, are not lost silently. Called once the transaction ran its tasks.
+     */
+    synchronized void checkWinnersEmitted()
+    {
+        if (finishedTasks < taskCount) {
+            throw new DataException(String.format(
+                    "the winners of keep: %s are emitted when task_count of %d tasks finished, but only %d tasks finished. set task_count to the number of tasks of the input",
+                    mode.name().toLowerCase(Locale.ENGLISH), taskCount, finishedTasks));
+        }
+    }
+
+    private DataException tooManyTasks()
+    {
+        return new DataException(String.format(
+                "the winners of keep: %s were emitted when %d tasks finished, but more tasks ran. set task_count to the number of tasks of the input",
+                mode.name().toLowerCase(Locale.ENGLISH), taskCount));
+    }
+
+    /**
+     * Offers a record of the key. The arrays of the key and the row may be reused by the caller.
+     */
+    void offer(byte[] key, int keyLength, byte[] order, byte[] row, int rowLength)
+    {
+        if (winnersEmitted) {
+            throw tooManyTasks();
+        }
+        long seq = sequence.getAndIncrement();
+        EncodedKey probe = EncodedKey.probe(key, keyLength);
+        Shard shard = shardOf(probe);
+        long total;
+        synchronized (shard) {
+            Winner current = shard.winners.get(probe);
+            if (current != null) {
+                if (isBetter(order, seq, current.order, current.seq)) {
+                    bytes.addAndGet(rowLength + order.length - current.row.length - current.order.length);
+                    current.set(order, Arrays.copyOf(row, rowLength), seq);
+                }
+                return;
+            }
+            if (spillManager != null && spillManager.isSpilling()) {
+                total = -1;
+            }
+            else {
+                shard.winners.put(EncodedKey.copyOf(key, keyLength), new Winner(order, Arrays.copyOf(row, rowLength), seq));
+                keys.incrementAndGet();
+                total = bytes.addAndGet(ENTRY_OVERHEAD + keyLength + rowLength + order.length);
+            }
+        }
+        if (total >= 0) {
+            if (spillManager != null && total >= memoryBudget) {
+                spillManager.startSpilling(keys.get(), total);
+            }
+            return;
+        }
+
+        byte[] entry = ByteBuffer.allocate(12 + order.length + rowLength)
+                .putLong(seq).putInt(order.length).put(order).put(row, 0, rowLength).array();
+        spillManager.write(key, keyLength, entry, entry.length);
+    }
+
+    /**
+     * Emits the winners to the builder, once every task finished.
+     *
+     * @return the number of records emitted
+     */
+    long emit(RowCodec rowCodec, PageBuilder pageBuilder)
+    {
+        winnersEmitted = true;
+        synchronized (emitLock) {
+            long emitted = 0;
+            if (spillManager != null) {
+                int generation = spillManager.nextGeneration();
+                if (generation >= 0) {
+                    for (int i = 0; i < spillManager.getPartitionCount(); i++) {
+                        emitted += emitSpilled(generation, i, rowCodec, pageBuilder);
+                    }
+                }
+            }
+            for (Shard shard : shards) {
+                synchronized (shard) {
+                    for (Winner winner : shard.winners.values()) {
+                        emitRow(winner.row, rowCodec, pageBuilder);
+                        bytes.addAndGet(-winner.row.length - winner.order.length);
+                        winner.release();
+                        emitted++;
+                    }
+                }
+            }
+            logger.info("emitted {} records kept by {}", emitted, mode.name().toLowerCase(Locale.ENGLISH));
+            return emitted;
+        }
+    }
+
+    private long emitSpilled(int generation, int partition, RowCodec rowCodec, PageBuilder pageBuilder)
+    {
+        final Map<EncodedKey, Winner> spilled = new HashMap<>();
+        spillManager.readPartition(generation, partition, new SpillManager.EntryVisitor()
+        {
+            @Override
+            public void visit(byte[] key, int keyLength, byte[] row, int rowLength)
+            {
+                ByteBuffer entry = ByteBuffer.wrap(row, 0, rowLength);
+                long seq = entry.getLong();
+                byte[] order = new byte[entry.getInt()];
+                entry.get(order);
+                int offset = entry.position();
+                EncodedKey probe = EncodedKey.probe(key, keyLength);
+                Winner current = spilled.get(probe);
+                if (current == null) {
+                    spilled.put(EncodedKey.copyOf(key, keyLength),
+                            new Winner(order, Arrays.copyOfRange(row, offset, rowLength), seq));
+                }
+                else if (isBetter(order, seq, current.order, current.seq)) {
+                    current.set(order, Arrays.copyOfRange(row, offset, rowLength), seq);
+                }
+            }
+        });
+
+        long emitted = 0;
+        Iterator<Map.Entry<EncodedKey, Winner>> iterator = spilled.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<EncodedKey, Winner> entry = iterator.next();
+            iterator.remove();
+            Winner candidate = entry.getValue();
+            Shard shard = shardOf(entry.getKey());
+            synchronized (shard) {
+                Winner current = shard.winners.get(entry.getKey());
+                if (current == null) {
+                    emitRow(candidate.row, rowCodec, pageBuilder);
+                    emitted++;
+                }
+                else if (isBetter(candidate.order, candidate.seq, current.order, current.seq)) {
+                    // a record reached memory while another output started spilling; emitted with memory
+                    bytes.addAndGet(candidate.row.length + candidate.order.length - current.row.length - current.order.length);
+                    current.set(candidate.order, candidate.row, candidate.seq);
+                }
+            }
+        }
+        return emitted;
+    }
+
+    private static void emitRow(byte[] row, RowCodec rowCodec, PageBuilder pageBuilder)
+    {
+        rowCodec.decode(ByteBuffer.wrap(row), pageBuilder);
+        pageBuilder.addRecord();
+    }
+
+    private boolean isBetter(byte[] order, long seq, byte[] currentOrder, long currentSeq)
+    {
+        switch (mode) {
+            case LAST:
+                return seq > currentSeq;
+            case MAX_BY: {
+                int diff = KeyEncoder.compareBytes(order, order.length, currentOrder, currentOrder.length);
+                return diff > 0 || (diff == 0 && seq < currentSeq);
+            }
+            case MIN_BY: {
+                int diff = KeyEncoder.compareBytes(order, order.length, currentOrder, currentOrder.length);
+                return diff < 0 || (diff == 0 && seq < currentSeq);
+            }
+            default:
+                return seq < currentSeq;
+        }
+    }
+
+    /**
+     * @return the number of keys held in memory
+     */
+    long size()
+    {
+        return keys.get();
+    }
+
+    long estimatedBytes()
+    {
+        return bytes.get();
+    }
+
+    private Shard shardOf(EncodedKey key)
+    {
+        return shards[KeyStores.shardOf(Murmur3.fmix64(key.hashCode()), shards.length)];
+    }
+
+    private static final class Shard
+    {
+        private final Map<EncodedKey, Winner> winners = new HashMap<>();
+    }
+
+    private static final class Winner
+    {
+        private static final byte[] EMPTY = new byte[0];
+
+        private byte[] order;
+        private byte[] row;
+        private long seq;
+
+        Winner(byte[] order, byte[] row, long seq)
+        {
+            set(order, row, seq);
+        }
+
+        // takes the arrays over
+        void set(byte[] order, byte[] row, long seq)
+        {
+            this.order = order;
+            this.row = row;
+            this.seq = seq;
+        }
+
+        // frees the arrays of an emitted winner
+        void release()
+        {
+            order = EMPTY;
+            row = EMPTY;
+        }
+    }
+}
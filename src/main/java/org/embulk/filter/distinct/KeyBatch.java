@@ -0,0 +1,113 @@
+package org.embulk.filter.distinct;
+
+import java.util.Arrays;
+
+/**
+ * The keys of the records of a page, collected to be added to a store at once.
+ *
+ * A store hashes every key first and fills {@link #shards}; {@link #groupByShard}
+ * then orders the keys shard by shard, keeping the page order within a shard,
+ * so that the store takes each shard's lock once per page instead of once per key.
+ * The arrays are reused from page to page. Not thread-safe.
+ */
+class KeyBatch
+{
+    private byte[][] keys = new byte[256][];
+    private int[] lengths = new int[256];
+    private int size;
+
+    // filled by stores
+    int[] shards = new int[256];
+    int[] hashes = new int[256];
+    long[] hashes1 = new long[256];
+    long[] hashes2 = new long[256];
+    int[] order = new int[256];
+    int[] shardStarts = new int[65];
+
+    void clear()
+    {
+        size = 0;
+    }
+
+    void add(byte[] key, int length)
+    {
+        if (size == keys.length) {
+            int capacity = size * 2;
+            keys = Arrays.copyOf(keys, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            shards = new int[capacity];
+            hashes = new int[capacity];
+            hashes1 = new long[capacity];
+            hashes2 = new long[capacity];
+            order = new int[capacity];
+        }
+        byte[] slot = keys[size];
+        if (slot == null || slot.length < length) {
+            slot = new byte[Math.max(length, 16)];
+            keys[size] = slot;
+        }
+        System.arraycopy(key, 0, slot, 0, length);
+        lengths[size] = length;
+        size++;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    byte[] key(int index)
+    {
+        return keys[index];
+    }
+
+    int length(int index)
+    {
+        return lengths[index];
+    }
+
+    /**
+     * Fills {@link #order} with the key indexes sorted by {@link #shards}, and
+     * {@link #shardStarts} with where each shard starts in it.
+     */
+    void groupByShard(int shardCount)
+    {
+        if (shardStarts.length < shardCount + 1) {
+            shardStarts = new int[shardCount + 1];
+        }
+        groupByShard(shards, size, shardCount, order, shardStarts);
+    }
+
+    /**
+     * A stable counting sort of the indexes {@code 0..count-1} by their shard.
+     * Afterwards the indexes of shard s are {@code order[shardStarts[s]..shardStarts[s+1]-1]}.
+     */
+    static void groupByShard(int[] shards, int count, int shardCount, int[] order, int[] shardStarts)
+    {
+        Arrays.fill(shardStarts, 0, shardCount + 1, 0);
+        for (int i = 0; i < count; i++) {
+            shardStarts[shards[i] + 1]++;
+        }
+        for (int s = 0; s < shardCount; s++) {
+            shardStarts[s + 1] += shardStarts[s];
+        }
+        // shardStarts[s] is the next position of shard s while filling, then shifted back
+        for (int i = 0; i < count; i++) {
+            order[shardStarts[shards[i]]++] = i;
+        }
+        for (int s = shardCount; s > 0; s--) {
+            shardStarts[s] = shardStarts[s - 1];
+        }
+        shardStarts[0] = 0;
+    }
+
+    /**
+     * Adds the keys one by one, for stores without a batched path.
+     */
+    static void addEach(KeyStore store, KeyBatch batch, boolean[] added)
+    {
+        for (int i = 0; i < batch.size; i++) {
+            added[i] = store.add(batch.keys[i], batch.lengths[i]);
+        }
+    }
+}
@@ -0,0 +1,444 @@
+package org.embulk.filter.distinct;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.time.Timestamp;
+import org.embulk.spi.type.Type;
+import org.embulk.spi.type.Types;
+import org.msgpack.value.ArrayValue;
+import org.msgpack.value.ExtensionValue;
+import org.msgpack.value.IntegerValue;
+import org.msgpack.value.MapValue;
+import org.msgpack.value.Value;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializes the distinct columns of the current record into one compact byte array.
+ *
+ * Every column starts with a type tag (or {@link #TAG_NULL}) and each value is written
+ * in a self-delimiting form, so two records produce the same bytes if and only if their
+ * distinct column values are equal. The encoder reuses its buffer between records.
+ * A json column with a path encodes only the value at the path, or null if there is none.
+ * Key transforms are applied while a value is written, without copying it first.
+ */
+class KeyEncoder
+{
+    static final byte TAG_NULL = 0;
+    static final byte TAG_BOOLEAN = 1;
+    static final byte TAG_LONG = 2;
+    static final byte TAG_DOUBLE = 3;
+    static final byte TAG_STRING = 4;
+    static final byte TAG_TIMESTAMP = 5;
+    static final byte TAG_JSON = 6;
+
+    // tags of msgpack values nested in a json column
+    private static final byte JSON_NIL = 0;
+    private static final byte JSON_BOOLEAN = 1;
+    private static final byte JSON_INTEGER = 2;
+    private static final byte JSON_BIG_INTEGER = 3;
+    private static final byte JSON_FLOAT = 4;
+    private static final byte JSON_STRING = 5;
+    private static final byte JSON_BINARY = 6;
+    private static final byte JSON_ARRAY = 7;
+    private static final byte JSON_MAP = 8;
+    private static final byte JSON_EXTENSION = 9;
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private static final Comparator<byte[]> UNSIGNED_BYTES_ORDER = new Comparator<byte[]>()
+    {
+        @Override
+        public int compare(byte[] left, byte[] right)
+        {
+            return compareBytes(left, left.length, right, right.length);
+        }
+    };
+
+    private final Column[] columns;
+    private final byte[] tags;
+    // null where the whole value of a column is encoded
+    private final JsonPath[] jsonPaths;
+    // key transforms of each column; 0 where a timestamp is not truncated or a double not rounded
+    private final boolean[] trim;
+    private final boolean[] lower;
+    private final long[] truncateNanos;
+    private final double[] roundScale;
+    private byte[] buffer = new byte[64];
+    private int length;
+
+    KeyEncoder(List<Column> columns)
+    {
+        this(columns, null, null);
+    }
+
+    /**
+     * @param jsonPaths the json path of each column, {@code $} for the whole value, or null for whole values only
+     * @param keyTransforms the key transforms of each column, or null for none
+     */
+    KeyEncoder(List<Column> columns, List<String> jsonPaths, List<List<KeyTransform>> keyTransforms)
+    {
+        this.columns = columns.toArray(new Column[columns.size()]);
+        int count = this.columns.length;
+        this.tags = new byte[count];
+        this.jsonPaths = new JsonPath[count];
+        this.trim = new boolean[count];
+        this.lower = new boolean[count];
+        this.truncateNanos = new long[count];
+        this.roundScale = new double[count];
+        for (int i = 0; i < count; i++) {
+            this.tags[i] = tagOf(this.columns[i].getType());
+            if (jsonPaths != null && tags[i] == TAG_JSON) {
+                JsonPath path = JsonPath.parse(jsonPaths.get(i));
+                this.jsonPaths[i] = path.isRoot() ? null : path;
+            }
+            if (keyTransforms != null) {
+                for (KeyTransform transform : keyTransforms.get(i)) {
+                    switch (transform.getKind()) {
+                        case TRIM:
+                            trim[i] = true;
+                            break;
+                        case LOWER:
+                            lower[i] = true;
+                            break;
+                        case TRUNCATE_TIMESTAMP:
+                            truncateNanos[i] = transform.getUnitNanos();
+                            break;
+                        default:
+                            roundScale[i] = Math.pow(10, transform.getDigits());
+                            break;
+                    }
+                }
+            }
+        }
+    }
+
+    static byte tagOf(Type type)
+    {
+        if (Types.BOOLEAN.equals(type)) {
+            return TAG_BOOLEAN;
+        }
+        else if (Types.LONG.equals(type)) {
+            return TAG_LONG;
+        }
+        else if (Types.DOUBLE.equals(type)) {
+            return TAG_DOUBLE;
+        }
+        else if (Types.STRING.equals(type)) {
+            return TAG_STRING;
+        }
+        else if (Types.TIMESTAMP.equals(type)) {
+            return TAG_TIMESTAMP;
+        }
+        else if (Types.JSON.equals(type)) {
+            return TAG_JSON;
+        }
+        else {
+            throw new RuntimeException("unsupported type: " + type);
+        }
+    }
+
+    /**
+     * Encodes the current record of the reader, replacing the previous content of the buffer.
+     */
+    void encode(PageReader pageReader)
+    {
+        length = 0;
+        for (int i = 0; i < columns.length; i++) {
+            Column column = columns[i];
+            if (pageReader.isNull(column)) {
+                writeByte(TAG_NULL);
+                continue;
+            }
+            if (jsonPaths[i] != null) {
+                Value value = jsonPaths[i].find(pageReader.getJson(column));
+                if (value == null) {
+                    writeByte(TAG_NULL);
+                }
+                else {
+                    writeByte(TAG_JSON);
+                    writeJson(value);
+                }
+                continue;
+            }
+            writeByte(tags[i]);
+            switch (tags[i]) {
+                case TAG_BOOLEAN:
+                    writeByte(pageReader.getBoolean(column) ? (byte) 1 : (byte) 0);
+                    break;
+                case TAG_LONG:
+                    writeVarLong(zigZag(pageReader.getLong(column)));
+                    break;
+                case TAG_DOUBLE:
+                    double number = pageReader.getDouble(column);
+                    if (roundScale[i] != 0) {
+                        number = round(number, roundScale[i]);
+                    }
+                    // same identity as Double#equals: NaNs are equal, 0.0 and -0.0 are not
+                    writeLong(Double.doubleToLongBits(number));
+                    break;
+                case TAG_STRING:
+                    writeString(pageReader.getString(column), trim[i], lower[i]);
+                    break;
+                case TAG_TIMESTAMP:
+                    Timestamp timestamp = pageReader.getTimestamp(column);
+                    long epochSecond = timestamp.getEpochSecond();
+                    long nano = timestamp.getNano();
+                    long unit = truncateNanos[i];
+                    writeVarLong(zigZag(truncateEpochSecond(epochSecond, unit)));
+                    writeVarLong(truncateNano(nano, unit));
+                    break;
+                default:
+                    writeJson(pageReader.getJson(column));
+                    break;
+            }
+        }
+    }
+
+    byte[] getBuffer()
+    {
+        return buffer;
+    }
+
+    int getLength()
+    {
+        return length;
+    }
+
+    byte[] toByteArray()
+    {
+        return Arrays.copyOf(buffer, length);
+    }
+
+    static int compareBytes(byte[] left, int leftLength, byte[] right, int rightLength)
+    {
+        int n = Math.min(leftLength, rightLength);
+        for (int i = 0; i < n; i++) {
+            int diff = (left[i] & 0xff) - (right[i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return leftLength - rightLength;
+    }
+
+    // the epoch second of a timestamp truncated to the unit in nanoseconds, 0 for none
+    static long truncateEpochSecond(long epochSecond, long unit)
+    {
+        if (unit < NANOS_PER_SECOND) {
+            return epochSecond;
+        }
+        long unitSeconds = unit / NANOS_PER_SECOND;
+        return epochSecond - ((epochSecond % unitSeconds) + unitSeconds) % unitSeconds;
+    }
+
+    // the nano of a timestamp truncated to the unit in nanoseconds, 0 for none
+    static long truncateNano(long nano, long unit)
+    {
+        if (unit >= NANOS_PER_SECOND) {
+            return 0;
+        }
+        return unit != 0 ? nano - nano % unit : nano;
+    }
+
+    // rounds half away from zero to the scale, and keeps the scaled value since only its identity
+    // and order matter
+    static double round(double value, double scale)
+    {
+        double scaled = value * scale;
+        if (Double.isNaN(scaled) || Math.abs(scaled) >= 0x1p52) {
+            // infinite or too large to have a fraction
+            return value;
+        }
+        // adding 0.0 makes -0.0 equal to 0.0
+        return Math.copySign(Math.floor(Math.abs(scaled) + 0.5), scaled) + 0.0;
+    }
+
+    private static long zigZag(long value)
+    {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private void ensureCapacity(int additional)
+    {
+        if (length + additional > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + additional));
+        }
+    }
+
+    private void writeByte(byte value)
+    {
+        ensureCapacity(1);
+        buffer[length++] = value;
+    }
+
+    private void writeBytes(byte[] bytes)
+    {
+        writeVarLong(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void writeLong(long value)
+    {
+        ensureCapacity(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buffer[length++] = (byte) (value >>> shift);
+        }
+    }
+
+    private void writeVarLong(long value)
+    {
+        ensureCapacity(10);
+        while ((value & ~0x7fL) != 0) {
+            buffer[length++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buffer[length++] = (byte) value;
+    }
+
+    // writes UTF-8 straight into the buffer to avoid String#getBytes allocating per record.
+    // trim drops leading and trailing characters up to ' ' as String#trim does, and lower
+    // maps every character as Character#toLowerCase does, independent of the default locale
+    private void writeString(String value, boolean trim, boolean lower)
+    {
+        int start = 0;
+        int chars = value.length();
+        if (trim) {
+            while (start < chars && value.charAt(start) <= ' ') {
+                start++;
+            }
+            while (chars > start && value.charAt(chars - 1) <= ' ') {
+                chars--;
+            }
+        }
+        int utf8Length = 0;
+        for (int i = start; i < chars; i++) {
+            char c = lower ? Character.toLowerCase(value.charAt(i)) : value.charAt(i);
+            if (c < 0x80) {
+                utf8Length += 1;
+            }
+            else if (c < 0x800) {
+                utf8Length += 2;
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < chars && Character.isLowSurrogate(value.charAt(i + 1))) {
+                utf8Length += 4;
+                i++;
+            }
+            else {
+                utf8Length += 3;
+            }
+        }
+
+        writeVarLong(utf8Length);
+        ensureCapacity(utf8Length);
+        for (int i = start; i < chars; i++) {
+            char c = lower ? Character.toLowerCase(value.charAt(i)) : value.charAt(i);
+            if (c < 0x80) {
+                buffer[length++] = (byte) c;
+            }
+            else if (c < 0x800) {
+                buffer[length++] = (byte) (0xc0 | (c >> 6));
+                buffer[length++] = (byte) (0x80 | (c & 0x3f));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < chars && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                if (lower) {
+                    codePoint = Character.toLowerCase(codePoint);
+                }
+                buffer[length++] = (byte) (0xf0 | (codePoint >> 18));
+                buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buffer[length++] = (byte) (0x80 | (codePoint & 0x3f));
+            }
+            else {
+                // unpaired surrogates are kept as-is so that distinct strings stay distinct
+                buffer[length++] = (byte) (0xe0 | (c >> 12));
+                buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[length++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    private void writeJson(Value value)
+    {
+        switch (value.getValueType()) {
+            case NIL:
+                writeByte(JSON_NIL);
+                break;
+            case BOOLEAN:
+                writeByte(JSON_BOOLEAN);
+                writeByte(value.asBooleanValue().getBoolean() ? (byte) 1 : (byte) 0);
+                break;
+            case INTEGER:
+                IntegerValue integer = value.asIntegerValue();
+                if (integer.isInLongRange()) {
+                    writeByte(JSON_INTEGER);
+                    writeVarLong(zigZag(integer.toLong()));
+                }
+                else {
+                    writeByte(JSON_BIG_INTEGER);
+                    writeBytes(integer.toBigInteger().toByteArray());
+                }
+                break;
+            case FLOAT:
+                writeByte(JSON_FLOAT);
+                writeLong(Double.doubleToLongBits(value.asFloatValue().toDouble()));
+                break;
+            case STRING:
+                writeByte(JSON_STRING);
+                writeBytes(value.asStringValue().asByteArray());
+                break;
+            case BINARY:
+                writeByte(JSON_BINARY);
+                writeBytes(value.asBinaryValue().asByteArray());
+                break;
+            case ARRAY:
+                ArrayValue array = value.asArrayValue();
+                writeByte(JSON_ARRAY);
+                writeVarLong(array.size());
+                for (int i = 0; i < array.size(); i++) {
+                    writeJson(array.get(i));
+                }
+                break;
+            case MAP:
+                writeJsonMap(value.asMapValue());
+                break;
+            case EXTENSION:
+                ExtensionValue extension = value.asExtensionValue();
+                writeByte(JSON_EXTENSION);
+                writeByte(extension.getType());
+                writeBytes(extension.getData());
+                break;
+            default:
+                throw new RuntimeException("unsupported json value: " + value.getValueType());
+        }
+    }
+
+    // msgpack maps are equal regardless of entry order, so entries are written sorted by their encoded key
+    private void writeJsonMap(MapValue map)
+    {
+        byte[][] entries = new byte[map.size()][];
+        int i = 0;
+        int start = length;
+        for (Map.Entry<Value, Value> entry : map.entrySet()) {
+            writeJson(entry.getKey());
+            writeJson(entry.getValue());
+            entries[i++] = Arrays.copyOfRange(buffer, start, length);
+            length = start;
+        }
+        Arrays.sort(entries, UNSIGNED_BYTES_ORDER);
+
+        writeByte(JSON_MAP);
+        writeVarLong(entries.length);
+        for (byte[] entry : entries) {
+            ensureCapacity(entry.length);
+            System.arraycopy(entry, 0, buffer, length, entry.length);
+            length += entry.length;
+        }
+    }
+}
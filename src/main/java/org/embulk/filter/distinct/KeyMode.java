@@ -0,0 +1,36 @@
+package org.embulk.filter.distinct;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+import org.embulk.config.ConfigException;
+
+import java.util.Locale;
+
+/**
+ * How distinct keys are held: the whole encoded key, only its hash, or only bloom filter bits.
+ */
+public enum KeyMode
+{
+    EXACT,
+    HASH64,
+    HASH128,
+    APPROXIMATE;
+
+    @JsonValue
+    @Override
+    public String toString()
+    {
+        return name().toLowerCase(Locale.ENGLISH);
+    }
+
+    @JsonCreator
+    public static KeyMode fromString(String value)
+    {
+        for (KeyMode mode : values()) {
+            if (mode.toString().equals(value)) {
+                return mode;
+            }
+        }
+        throw new ConfigException(String.format("Unknown key_mode '%s'. Supported key_mode are exact, hash64, hash128, approximate", value));
+    }
+}
@@ -0,0 +1,49 @@
+package org.embulk.filter.distinct;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the distinct keys of a transaction for the tasks of every process running it,
+ * e.g. the nodes of a distributed executor, so that duplicates are dropped across them.
+ *
+ * Keys are partitioned by hash and each partition is owned by a single place of the service,
+ * so that adding a key is decided once for the whole transaction. A process sends the keys
+ * of a page in one request, grouped by the partition owning them; an implementation on the
+ * network forwards the groups to their owners, e.g. concurrently.
+ *
+ * An implementation named by key_service has a public constructor taking the transaction id,
+ * the number of partitions and the key_service_options, in this order, and is constructed
+ * once in every process running tasks of the transaction.
+ */
+public interface KeyService
+        extends Closeable
+{
+    /**
+     * Adds keys in order; a key repeated within the list of a partition is added by its
+     * first occurrence.
+     *
+     * @param keys by partition, encoded keys or their hashes with key_mode hash64 and hash128
+     * @return by partition, whether each key was not added by any task of the transaction before
+     */
+    Map<Integer, boolean[]> addAll(Map<Integer, List<byte[]>> keys)
+            throws IOException;
+
+    /**
+     * Looks keys up without adding them.
+     *
+     * @param keys by partition, encoded keys or their hashes with key_mode hash64 and hash128
+     * @return by partition, whether each key was added by a task of the transaction
+     */
+    Map<Integer, boolean[]> containsAll(Map<Integer, List<byte[]>> keys)
+            throws IOException;
+
+    /**
+     * Drops the keys of the transaction. Called once by the process of the transaction
+     * after every task finished.
+     */
+    void release()
+            throws IOException;
+}
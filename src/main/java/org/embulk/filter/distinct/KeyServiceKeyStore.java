@@ -0,0 +1,200 @@
+package org.embulk.filter.distinct;
+
+import org.embulk.spi.DataException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asks a {@link KeyService} whether keys are distinct across every process of the transaction.
+ *
+ * The keys of a batch are grouped by the partition owning them, selected by the high bits of
+ * their hash, and sent in one request per batch. Outputs decide pages as batches with a key
+ * service, so {@link #add} is not on their path. With key_mode hash64 or hash128 only the
+ * fingerprint of a key is sent. Nothing is kept in this process.
+ */
+class KeyServiceKeyStore
+        implements KeyStore
+{
+    private final KeyService service;
+    private final int partitionCount;
+    // 0 to send whole keys, or the bits of the fingerprint to send
+    private final int bits;
+    private final AtomicLong addedKeys = new AtomicLong();
+
+    KeyServiceKeyStore(KeyService service, int partitionCount, int bits)
+    {
+        this.service = service;
+        this.partitionCount = partitionCount;
+        this.bits = bits;
+    }
+
+    @Override
+    public boolean add(byte[] key, int length)
+    {
+        long[] hash = Murmur3.hash128(key, length);
+        int partition = KeyStores.shardOf(hash[0], partitionCount);
+        boolean added;
+        try {
+            added = service.addAll(singleKey(partition, payloadOf(key, length, hash[0], hash[1]))).get(partition)[0];
+        }
+        catch (IOException e) {
+            throw new DataException("failed to add keys to key_service", e);
+        }
+        if (added) {
+            addedKeys.incrementAndGet();
+        }
+        return added;
+    }
+
+    @Override
+    public void addAbsent(byte[] key, int length)
+    {
+        add(key, length);
+    }
+
+    @Override
+    public void addAll(KeyBatch batch, boolean[] added)
+    {
+        for (int i = 0; i < batch.size(); i++) {
+            long[] hash = Murmur3.hash128(batch.key(i), batch.length(i));
+            batch.hashes1[i] = hash[0];
+            batch.hashes2[i] = hash[1];
+            batch.shards[i] = KeyStores.shardOf(hash[0], partitionCount);
+        }
+        batch.groupByShard(partitionCount);
+        Map<Integer, List<byte[]>> keys = new HashMap<>();
+        for (int p = 0; p < partitionCount; p++) {
+            int start = batch.shardStarts[p];
+            int end = batch.shardStarts[p + 1];
+            if (start == end) {
+                continue;
+            }
+            List<byte[]> partitionKeys = new ArrayList<>(end - start);
+            for (int j = start; j < end; j++) {
+                int index = batch.order[j];
+                partitionKeys.add(payloadOf(batch.key(index), batch.length(index), batch.hashes1[index], batch.hashes2[index]));
+            }
+            keys.put(p, partitionKeys);
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+        Map<Integer, boolean[]> partitionsAdded;
+        try {
+            partitionsAdded = service.addAll(keys);
+        }
+        catch (IOException e) {
+            throw new DataException("failed to add keys to key_service", e);
+        }
+        long count = 0;
+        for (int p : keys.keySet()) {
+            boolean[] partitionAdded = partitionsAdded.get(p);
+            int start = batch.shardStarts[p];
+            for (int j = start; j < batch.shardStarts[p + 1]; j++) {
+                boolean distinct = partitionAdded[j - start];
+                added[batch.order[j]] = distinct;
+                if (distinct) {
+                    count++;
+                }
+            }
+        }
+        addedKeys.addAndGet(count);
+    }
+
+    private byte[] payloadOf(byte[] key, int length, long hash1, long hash2)
+    {
+        if (bits == 0) {
+            return Arrays.copyOf(key, length);
+        }
+        byte[] payload = new byte[bits / 8];
+        writeLong(payload, 0, hash1);
+        if (bits == 128) {
+            writeLong(payload, 8, hash2);
+        }
+        return payload;
+    }
+
+    private static void writeLong(byte[] target, int offset, long value)
+    {
+        for (int i = 0; i < 8; i++) {
+            target[offset + i] = (byte) (value >>> (56 - i * 8));
+        }
+    }
+
+    @Override
+    public boolean contains(byte[] key, int length)
+    {
+        long[] hash = Murmur3.hash128(key, length);
+        int partition = KeyStores.shardOf(hash[0], partitionCount);
+        try {
+            return service.containsAll(singleKey(partition, payloadOf(key, length, hash[0], hash[1]))).get(partition)[0];
+        }
+        catch (IOException e) {
+            throw new DataException("failed to look keys up in key_service", e);
+        }
+    }
+
+    private static Map<Integer, List<byte[]>> singleKey(int partition, byte[] payload)
+    {
+        return Collections.singletonMap(partition, Collections.singletonList(payload));
+    }
+
+    /**
+     * @return the number of distinct keys added by the tasks of this process
+     */
+    @Override
+    public long size()
+    {
+        return addedKeys.get();
+    }
+
+    @Override
+    public long estimatedBytes()
+    {
+        return 0;
+    }
+
+    @Override
+    public long rehashes()
+    {
+        return 0;
+    }
+
+    /**
+     * Disconnects from the service, leaving the keys of the transaction to other processes.
+     */
+    void close()
+    {
+        try {
+            service.close();
+        }
+        catch (IOException e) {
+            throw new DataException("failed to disconnect from key_service", e);
+        }
+    }
+
+    /**
+     * Drops the keys of the transaction from the service and disconnects.
+     */
+    void release()
+    {
+        try {
+            try {
+                service.release();
+            }
+            finally {
+                service.close();
+            }
+        }
+        catch (IOException e) {
+            throw new DataException("failed to release the keys of key_service", e);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package org.embulk.filter.distinct;
+
+/**
+ * Holds the distinct keys seen so far. Implementations are shared by every task
+ * of the plugin and must be thread-safe.
+ */
+interface KeyStore
+{
+    /**
+     * Adds the key encoded by {@link KeyEncoder}.
+     *
+     * @return true if the key was not seen before
+     */
+    boolean add(byte[] key, int length);
+
+    /**
+     * Adds a key that the caller knows is not held, e.g. by a bloom filter miss.
+     * Implementations may skip looking the key up.
+     */
+    void addAbsent(byte[] key, int length);
+
+    /**
+     * Adds the keys of the batch in order, as {@link #add} would one by one.
+     *
+     * @param added set to whether each key was not seen before
+     */
+    void addAll(KeyBatch batch, boolean[] added);
+
+    boolean contains(byte[] key, int length);
+
+    /**
+     * @return the number of distinct keys held
+     */
+    long size();
+
+    /**
+     * @return an estimate of the memory held by the store, in bytes
+     */
+    long estimatedBytes();
+
+    /**
+     * @return the number of times a table or filter of the store grew
+     */
+    long rehashes();
+}
@@ -0,0 +1,113 @@
+package org.embulk.filter.distinct;
+
+import com.google.common.base.Throwables;
+import org.embulk.config.ConfigException;
+import org.embulk.filter.distinct.DistinctFilterPlugin.PluginTask;
+import org.embulk.spi.DataException;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Map;
+
+final class KeyStores
+{
+    // the number of keys the first filter of key_mode: approximate is sized for
+    private static final long DEFAULT_APPROXIMATE_KEYS = 1 << 20;
+
+    private KeyStores()
+    {
+    }
+
+    static KeyStore create(final PluginTask task)
+    {
+        if (task.getKeyService().isPresent()) {
+            int bits = task.getKeyMode() == KeyMode.HASH64 ? 64 : task.getKeyMode() == KeyMode.HASH128 ? 128 : 0;
+            return new KeyServiceKeyStore(openKeyService(task), task.getKeyServicePartitions(), bits);
+        }
+        if (task.getWindow().isPresent()) {
+            Window window = task.getWindow().get();
+            int generations = task.getWindowGenerations();
+            // a generation of a shard holds the keys of a bucket of the window
+            final long expectedKeys = task.getExpectedDistinctKeys().or(0L) / generations / task.getShards();
+            return new WindowedKeyStore(window.getLength(), generations, task.getShards(),
+                    new WindowedKeyStore.GenerationFactory()
+                    {
+                        @Override
+                        public KeyStore create()
+                        {
+                            return createBase(task, 1, expectedKeys);
+                        }
+                    });
+        }
+        KeyStore store = createBase(task, task.getShards(), task.getExpectedDistinctKeys().or(0L));
+        if (task.getKeyMode() == KeyMode.EXACT && task.getExpectedKeys().isPresent()) {
+            store = new PrefilteredKeyStore(store, task.getExpectedKeys().get(), task.getFpp(), task.getShards());
+        }
+        if (task.getMemoryBudget().isPresent() && task.getMemoryPolicy() != MemoryPolicy.SPILL) {
+            store = new BudgetedKeyStore(store, task.getMemoryBudget().get().getBytes(), task.getMemoryPolicy(), task.getFpp(),
+                    task.getApproximateCapacity().isPresent()
+                            ? task.getApproximateCapacity().get().getBytes() : Long.MAX_VALUE);
+        }
+        return store;
+    }
+
+    private static KeyStore createBase(PluginTask task, int shardCount, long expectedKeys)
+    {
+        if (task.getStore() == StoreType.OFF_HEAP) {
+            return new OffHeapKeyStore(task.getOffHeapCapacity().isPresent()
+                    ? task.getOffHeapCapacity().get().getBytes() : DirectMemory.maxDirectMemory(), shardCount,
+                    expectedKeys, task.getLoadFactor());
+        }
+        switch (task.getKeyMode()) {
+            case HASH64:
+                return new HashedKeyStore(64, shardCount, expectedKeys, task.getLoadFactor());
+            case HASH128:
+                return new HashedKeyStore(128, shardCount, expectedKeys, task.getLoadFactor());
+            case APPROXIMATE:
+                return new ApproximateKeyStore(task.getExpectedKeys().or(task.getExpectedDistinctKeys().or(DEFAULT_APPROXIMATE_KEYS)), task.getFpp(),
+                        task.getApproximateCapacity().isPresent()
+                                ? task.getApproximateCapacity().get().getBytes() : Long.MAX_VALUE);
+            default:
+                return new ExactKeyStore(shardCount, expectedKeys, (float) task.getLoadFactor());
+        }
+    }
+
+    /**
+     * @return the service named by key_service: local, or the class name of a {@link KeyService}
+     */
+    private static KeyService openKeyService(PluginTask task)
+    {
+        String name = task.getKeyService().get();
+        if (name.equals("local")) {
+            return new LocalKeyService(task.getTransactionId(), task.getKeyServicePartitions(), task.getKeyServiceOptions());
+        }
+        Class<? extends KeyService> serviceClass;
+        try {
+            serviceClass = Class.forName(name, true, KeyStores.class.getClassLoader()).asSubclass(KeyService.class);
+        }
+        catch (ClassNotFoundException | ClassCastException e) {
+            throw new ConfigException(String.format(
+                    "Unknown key_service '%s'. Use local or the name of a class implementing %s", name, KeyService.class.getName()), e);
+        }
+        try {
+            return serviceClass.getConstructor(String.class, int.class, Map.class)
+                    .newInstance(task.getTransactionId(), task.getKeyServicePartitions(), task.getKeyServiceOptions());
+        }
+        catch (InvocationTargetException e) {
+            Throwables.propagateIfPossible(e.getCause());
+            throw new DataException("failed to connect to key_service " + name, e.getCause());
+        }
+        catch (ReflectiveOperationException e) {
+            throw new ConfigException(String.format(
+                    "key_service %s needs a public constructor taking (String transactionId, int partitions, Map<String, String> options)", name), e);
+        }
+    }
+
+    /**
+     * Maps the high 32 bits of a well mixed hash to a shard, so that tables
+     * indexed by the low bits of the same hash stay evenly filled.
+     */
+    static int shardOf(long hash, int shardCount)
+    {
+        return (int) (((hash >>> 32) * shardCount) >>> 32);
+    }
+}
@@ -0,0 +1,157 @@
+package org.embulk.filter.distinct;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+import org.embulk.config.ConfigException;
+import org.embulk.spi.type.Type;
+import org.embulk.spi.type.Types;
+
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A normalization of a distinct column applied to its key only, the record is emitted as read:
+ * {@code lower} and {@code trim} of a string, {@code truncate_timestamp(unit)} of a timestamp,
+ * or {@code round(digits)} of a double.
+ */
+public class KeyTransform
+{
+    public enum Kind
+    {
+        LOWER,
+        TRIM,
+        TRUNCATE_TIMESTAMP,
+        ROUND
+    }
+
+    private static final Pattern PATTERN = Pattern.compile("\\s*(\\w+)\\s*(?:\\(\\s*(.*?)\\s*\\))?\\s*");
+    private static final int MAX_DIGITS = 15;
+
+    private final Kind kind;
+    private final String unit;
+    private final long unitNanos;
+    private final int digits;
+
+    private KeyTransform(Kind kind, String unit, long unitNanos, int digits)
+    {
+        this.kind = kind;
+        this.unit = unit;
+        this.unitNanos = unitNanos;
+        this.digits = digits;
+    }
+
+    @JsonCreator
+    public static KeyTransform fromString(String value)
+    {
+        Matcher matcher = PATTERN.matcher(value);
+        if (!matcher.matches()) {
+            throw unknown(value);
+        }
+        String name = matcher.group(1).toLowerCase(Locale.ENGLISH);
+        String argument = matcher.group(2);
+        switch (name) {
+            case "lower":
+            case "trim":
+                if (argument != null) {
+                    throw unknown(value);
+                }
+                return new KeyTransform(Kind.valueOf(name.toUpperCase(Locale.ENGLISH)), null, 0, 0);
+            case "truncate_timestamp":
+                if (argument == null) {
+                    throw unknown(value);
+                }
+                return new KeyTransform(Kind.TRUNCATE_TIMESTAMP, argument, unitNanos(argument), 0);
+            case "round":
+                if (argument == null) {
+                    throw unknown(value);
+                }
+                int digits;
+                try {
+                    digits = Integer.parseInt(argument);
+                }
+                catch (NumberFormatException e) {
+                    throw unknown(value);
+                }
+                if (Math.abs(digits) > MAX_DIGITS) {
+                    throw new ConfigException(String.format("round digits must be between %d and %d: '%s'", -MAX_DIGITS, MAX_DIGITS, value));
+                }
+                return new KeyTransform(Kind.ROUND, null, 0, digits);
+            default:
+                throw unknown(value);
+        }
+    }
+
+    private static long unitNanos(String unit)
+    {
+        switch (unit.toLowerCase(Locale.ENGLISH)) {
+            case "millisecond":
+                return 1000000L;
+            case "second":
+                return 1000000000L;
+            case "minute":
+                return 60 * 1000000000L;
+            case "hour":
+                return 60 * 60 * 1000000000L;
+            case "day":
+                return 24 * 60 * 60 * 1000000000L;
+            default:
+                throw new ConfigException(String.format(
+                        "Unknown truncate_timestamp unit '%s'. Supported units are millisecond, second, minute, hour, day", unit));
+        }
+    }
+
+    private static ConfigException unknown(String value)
+    {
+        return new ConfigException(String.format(
+                "Unknown key transform '%s'. Supported key transforms are lower, trim, truncate_timestamp(unit), round(digits)", value));
+    }
+
+    public Kind getKind()
+    {
+        return kind;
+    }
+
+    /**
+     * @return the unit of truncate_timestamp in nanoseconds; days are of UTC
+     */
+    public long getUnitNanos()
+    {
+        return unitNanos;
+    }
+
+    /**
+     * @return the digits after the decimal point round keeps, negative to round to tens and more
+     */
+    public int getDigits()
+    {
+        return digits;
+    }
+
+    boolean appliesTo(Type type)
+    {
+        switch (kind) {
+            case LOWER:
+            case TRIM:
+                return Types.STRING.equals(type);
+            case TRUNCATE_TIMESTAMP:
+                return Types.TIMESTAMP.equals(type);
+            default:
+                return Types.DOUBLE.equals(type);
+        }
+    }
+
+    @JsonValue
+    @Override
+    public String toString()
+    {
+        switch (kind) {
+            case TRUNCATE_TIMESTAMP:
+                return String.format("truncate_timestamp(%s)", unit);
+            case ROUND:
+                return String.format("round(%d)", digits);
+            default:
+                return kind.name().toLowerCase(Locale.ENGLISH);
+        }
+    }
+}
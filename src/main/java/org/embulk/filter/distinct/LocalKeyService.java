@@ -0,0 +1,81 @@
+package org.embulk.filter.distinct;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The key service of {@code key_service: local}: every partition is owned by a table in
+ * this JVM, shared by the instances of a transaction. It dedups across tasks of the local
+ * executor and in tests only; a distributed executor needs a service on the network.
+ */
+class LocalKeyService
+        implements KeyService
+{
+    private final static ConcurrentMap<String, KeyStore[]> partitionsByTransaction = new ConcurrentHashMap<>();
+
+    private final String transactionId;
+    private final KeyStore[] partitions;
+
+    LocalKeyService(String transactionId, int partitionCount, Map<String, String> options)
+    {
+        this.transactionId = transactionId;
+        KeyStore[] partitions = new KeyStore[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = new ExactKeyStore(1);
+        }
+        KeyStore[] existing = partitionsByTransaction.putIfAbsent(transactionId, partitions);
+        this.partitions = existing != null ? existing : partitions;
+    }
+
+    @Override
+    public Map<Integer, boolean[]> addAll(Map<Integer, List<byte[]>> keys)
+    {
+        Map<Integer, boolean[]> added = new HashMap<>();
+        for (Map.Entry<Integer, List<byte[]>> entry : keys.entrySet()) {
+            KeyStore owner = partitions[entry.getKey()];
+            List<byte[]> partitionKeys = entry.getValue();
+            boolean[] partitionAdded = new boolean[partitionKeys.size()];
+            synchronized (owner) {
+                for (int i = 0; i < partitionKeys.size(); i++) {
+                    byte[] key = partitionKeys.get(i);
+                    partitionAdded[i] = owner.add(key, key.length);
+                }
+            }
+            added.put(entry.getKey(), partitionAdded);
+        }
+        return added;
+    }
+
+    @Override
+    public Map<Integer, boolean[]> containsAll(Map<Integer, List<byte[]>> keys)
+    {
+        Map<Integer, boolean[]> contained = new HashMap<>();
+        for (Map.Entry<Integer, List<byte[]>> entry : keys.entrySet()) {
+            KeyStore owner = partitions[entry.getKey()];
+            List<byte[]> partitionKeys = entry.getValue();
+            boolean[] partitionContained = new boolean[partitionKeys.size()];
+            synchronized (owner) {
+                for (int i = 0; i < partitionKeys.size(); i++) {
+                    byte[] key = partitionKeys.get(i);
+                    partitionContained[i] = owner.contains(key, key.length);
+                }
+            }
+            contained.put(entry.getKey(), partitionContained);
+        }
+        return contained;
+    }
+
+    @Override
+    public void release()
+    {
+        partitionsByTransaction.remove(transactionId);
+    }
+
+    @Override
+    public void close()
+    {
+    }
+}
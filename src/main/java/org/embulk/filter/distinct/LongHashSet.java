@@ -0,0 +1,170 @@
+package org.embulk.filter.distinct;
+
+/**
+ * An open-addressing set of fixed-width keys made of one or two longs,
+ * stored inline in a single long array with linear probing.
+ * The all-zero key is tracked separately because zero marks an empty slot.
+ *
+ * Not thread-safe.
+ */
+class LongHashSet
+{
+    private static final int DEFAULT_CAPACITY = 1 << 10;
+    private static final int MAX_LONGS = 1 << 30;
+
+    private final int width;
+    private final double loadFactor;
+    private long[] slots;
+    private int mask;
+    private int threshold;
+    private long size;
+    private boolean containsZero;
+    private int rehashes;
+
+    LongHashSet(int width)
+    {
+        this(width, 0, 0.75);
+    }
+
+    /**
+     * @param expectedKeys the number of keys to hold without rehashing, or 0 for the default capacity
+     * @param loadFactor the ratio of held keys to slots that triggers a rehash
+     */
+    LongHashSet(int width, long expectedKeys, double loadFactor)
+    {
+        if (width != 1 && width != 2) {
+            throw new IllegalArgumentException("width must be 1 or 2: " + width);
+        }
+        this.width = width;
+        this.loadFactor = loadFactor;
+        allocate(expectedKeys > 0 ? capacityFor(expectedKeys, loadFactor, MAX_LONGS / width) : DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @return the power of two number of slots that holds the keys under the load factor
+     */
+    static int capacityFor(long expectedKeys, double loadFactor, int maxCapacity)
+    {
+        long slots = (long) Math.ceil(expectedKeys / loadFactor) + 1;
+        if (slots >= maxCapacity) {
+            return maxCapacity;
+        }
+        return Math.max(Integer.highestOneBit((int) slots - 1) << 1, 16);
+    }
+
+    boolean add(long key)
+    {
+        return add(key, 0L);
+    }
+
+    boolean add(long first, long second)
+    {
+        if (first == 0 && second == 0) {
+            if (containsZero) {
+                return false;
+            }
+            containsZero = true;
+            size++;
+            return true;
+        }
+
+        int index = indexOf(first, second);
+        while (true) {
+            int offset = index * width;
+            long slotFirst = slots[offset];
+            long slotSecond = width == 1 ? 0L : slots[offset + 1];
+            if (slotFirst == 0 && slotSecond == 0) {
+                slots[offset] = first;
+                if (width == 2) {
+                    slots[offset + 1] = second;
+                }
+                if (++size > threshold) {
+                    rehash();
+                }
+                return true;
+            }
+            if (slotFirst == first && slotSecond == second) {
+                return false;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    boolean contains(long key)
+    {
+        return contains(key, 0L);
+    }
+
+    boolean contains(long first, long second)
+    {
+        if (first == 0 && second == 0) {
+            return containsZero;
+        }
+
+        int index = indexOf(first, second);
+        while (true) {
+            int offset = index * width;
+            long slotFirst = slots[offset];
+            long slotSecond = width == 1 ? 0L : slots[offset + 1];
+            if (slotFirst == 0 && slotSecond == 0) {
+                return false;
+            }
+            if (slotFirst == first && slotSecond == second) {
+                return true;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    long size()
+    {
+        return size;
+    }
+
+    long estimatedBytes()
+    {
+        return slots.length * 8L;
+    }
+
+    int rehashes()
+    {
+        return rehashes;
+    }
+
+    private int indexOf(long first, long second)
+    {
+        return (int) Murmur3.fmix64(first ^ Long.rotateLeft(second, 32)) & mask;
+    }
+
+    private void allocate(int capacity)
+    {
+        slots = new long[capacity * width];
+        mask = capacity - 1;
+        threshold = (int) Math.min(capacity * loadFactor, capacity - 1);
+    }
+
+    private void rehash()
+    {
+        long[] old = slots;
+        if (old.length >= MAX_LONGS) {
+            throw new IllegalStateException("too many keys: " + size);
+        }
+        allocate(old.length / width * 2);
+        rehashes++;
+        for (int offset = 0; offset < old.length; offset += width) {
+            long first = old[offset];
+            long second = width == 1 ? 0L : old[offset + 1];
+            if (first == 0 && second == 0) {
+                continue;
+            }
+            int index = indexOf(first, second);
+            while (slots[index * width] != 0 || (width == 2 && slots[index * width + 1] != 0)) {
+                index = (index + 1) & mask;
+            }
+            slots[index * width] = first;
+            if (width == 2) {
+                slots[index * width + 1] = second;
+            }
+        }
+    }
+}
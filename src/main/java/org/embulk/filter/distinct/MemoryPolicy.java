@@ -0,0 +1,37 @@
+package org.embulk.filter.distinct;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+import org.embulk.config.ConfigException;
+
+import java.util.Locale;
+
+/**
+ * What happens when the key store reaches memory_budget: spill new keys to disk, fail,
+ * keep new keys approximately, or stop remembering new keys.
+ */
+public enum MemoryPolicy
+{
+    SPILL,
+    FAIL,
+    APPROXIMATE,
+    STOP;
+
+    @JsonValue
+    @Override
+    public String toString()
+    {
+        return name().toLowerCase(Locale.ENGLISH);
+    }
+
+    @JsonCreator
+    public static MemoryPolicy fromString(String value)
+    {
+        for (MemoryPolicy policy : values()) {
+            if (policy.toString().equals(value)) {
+                return policy;
+            }
+        }
+        throw new ConfigException(String.format("Unknown memory_policy '%s'. Supported memory_policy are spill, fail, approximate, stop", value));
+    }
+}
@@ -0,0 +1,135 @@
+package org.embulk.filter.distinct;
+
+/**
+ * MurmurHash3 x64 128-bit over a byte range, without allocating a result object.
+ */
+final class Murmur3
+{
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    private static final ThreadLocal<long[]> SCRATCH = new ThreadLocal<long[]>()
+    {
+        @Override
+        protected long[] initialValue()
+        {
+            return new long[2];
+        }
+    };
+
+    private Murmur3()
+    {
+    }
+
+    /**
+     * Stores the two 64-bit halves of the hash into {@code out[0]} and {@code out[1]}.
+     */
+    static void hash128(byte[] data, int length, long[] out)
+    {
+        out[0] = hash(data, length, out);
+    }
+
+    /**
+     * Stores the two 64-bit halves of the hash into an array of the calling thread, so that
+     * stores shared by tasks hash a key without allocating. The array is overwritten by the
+     * next call in the thread.
+     */
+    static long[] hash128(byte[] data, int length)
+    {
+        long[] out = SCRATCH.get();
+        hash128(data, length, out);
+        return out;
+    }
+
+    /**
+     * @return the first 64-bit half of the 128-bit hash
+     */
+    static long hash64(byte[] data, int length)
+    {
+        return hash(data, length, null);
+    }
+
+    private static long hash(byte[] data, int length, long[] out)
+    {
+        long h1 = 0;
+        long h2 = 0;
+
+        int blocks = length >>> 4;
+        for (int i = 0; i < blocks; i++) {
+            long k1 = getLongLittleEndian(data, i << 4);
+            long k2 = getLongLittleEndian(data, (i << 4) + 8);
+
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        int tail = blocks << 4;
+        int remaining = length - tail;
+        if (remaining > 8) {
+            h2 ^= mixK2(getPartialLongLittleEndian(data, tail + 8, remaining - 8));
+        }
+        if (remaining > 0) {
+            h1 ^= mixK1(getPartialLongLittleEndian(data, tail, Math.min(remaining, 8)));
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+
+        if (out != null) {
+            out[1] = h2;
+        }
+        return h1;
+    }
+
+    static long fmix64(long k)
+    {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private static long mixK1(long k1)
+    {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        return k1;
+    }
+
+    private static long mixK2(long k2)
+    {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        return k2;
+    }
+
+    private static long getLongLittleEndian(byte[] data, int offset)
+    {
+        return getPartialLongLittleEndian(data, offset, 8);
+    }
+
+    private static long getPartialLongLittleEndian(byte[] data, int offset, int length)
+    {
+        long value = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xffL);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,342 @@
+package org.embulk.filter.distinct;
+
+import org.embulk.spi.DataException;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps encoded keys in direct memory so that they add nothing to the Java heap.
+ *
+ * Keys are hashed to one of the stripes, each guarded by its own lock.
+ * A stripe appends keys to direct memory arenas and indexes them with an open-addressing
+ * table, also in direct memory, whose slots pack a 16-bit hash tag with the key address.
+ * All arenas and tables together never reserve more than the configured capacity, which is
+ * at most the direct memory of the JVM. A table replaced by a rehash is released at once, so
+ * that it is not held until it is collected; where the JVM does not allow it, it stays counted.
+ */
+class OffHeapKeyStore
+        implements KeyStore
+{
+    private static final int MIN_ARENA_SIZE = 64 << 10;
+    private static final int MAX_ARENA_SIZE = 16 << 20;
+    private static final int INITIAL_SLOTS = 1 << 10;
+    private static final int MAX_SLOTS = 1 << 28;
+    private static final long ADDRESS_MASK = (1L << 48) - 1;
+
+    private final long capacity;
+    private final int initialSlots;
+    private final double loadFactor;
+    private final AtomicLong reserved = new AtomicLong();
+    private final Stripe[] stripes;
+
+    /**
+     * @param capacity the maximum number of bytes of direct memory to reserve
+     * @param stripeCount the number of stripes, up to 65536
+     * @param expectedKeys the number of keys to hold without rehashing, or 0 to start small
+     * @param loadFactor the ratio of held keys to slots that triggers a rehash
+     */
+    OffHeapKeyStore(long capacity, int stripeCount, long expectedKeys, double loadFactor)
+    {
+        this.capacity = capacity;
+        this.initialSlots = expectedKeys > 0
+                ? LongHashSet.capacityFor((expectedKeys + stripeCount - 1) / stripeCount, loadFactor, MAX_SLOTS)
+                : INITIAL_SLOTS;
+        this.loadFactor = loadFactor;
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    @Override
+    public boolean add(byte[] key, int length)
+    {
+        long hash = Murmur3.hash64(key, length);
+        return stripeOf(hash).add(key, length, hash);
+    }
+
+    @Override
+    public void addAbsent(byte[] key, int length)
+    {
+        long hash = Murmur3.hash64(key, length);
+        stripeOf(hash).addAbsent(key, length, hash);
+    }
+
+    @Override
+    public void addAll(KeyBatch batch, boolean[] added)
+    {
+        for (int i = 0; i < batch.size(); i++) {
+            long hash = Murmur3.hash64(batch.key(i), batch.length(i));
+            batch.hashes1[i] = hash;
+            batch.shards[i] = stripeIndexOf(hash);
+        }
+        batch.groupByShard(stripes.length);
+        for (int s = 0; s < stripes.length; s++) {
+            if (batch.shardStarts[s] < batch.shardStarts[s + 1]) {
+                stripes[s].addAll(batch, batch.shardStarts[s], batch.shardStarts[s + 1], added);
+            }
+        }
+    }
+
+    @Override
+    public boolean contains(byte[] key, int length)
+    {
+        long hash = Murmur3.hash64(key, length);
+        return stripeOf(hash).contains(key, length, hash);
+    }
+
+    @Override
+    public long size()
+    {
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    @Override
+    public long estimatedBytes()
+    {
+        return reserved.get();
+    }
+
+    @Override
+    public long rehashes()
+    {
+        long rehashes = 0;
+        for (Stripe stripe : stripes) {
+            rehashes += stripe.rehashes();
+        }
+        return rehashes;
+    }
+
+    // the slot index takes the low bits of the hash and the tag bits 32 to 47
+    private Stripe stripeOf(long hash)
+    {
+        return stripes[stripeIndexOf(hash)];
+    }
+
+    private int stripeIndexOf(long hash)
+    {
+        return (int) (((hash >>> 48) * stripes.length) >>> 16);
+    }
+
+    private void reserve(long bytes)
+    {
+        long total = reserved.addAndGet(bytes);
+        if (total > capacity) {
+            reserved.addAndGet(-bytes);
+            throw new DataException(String.format(
+                    "off-heap key store reached off_heap_capacity: %d bytes are reserved and %d more bytes are required",
+                    total - bytes, bytes));
+        }
+    }
+
+    private void unreserve(long bytes)
+    {
+        reserved.addAndGet(-bytes);
+    }
+
+    private final class Stripe
+    {
+        private final List<ByteBuffer> arenas = new ArrayList<>();
+        private ByteBuffer arena;
+        private ByteBuffer slotBuffer;
+        private LongBuffer slots;
+        private int mask;
+        private int threshold;
+        private int size;
+        private int rehashes;
+        private byte[] scratch = new byte[64];
+
+        synchronized boolean add(byte[] key, int length, long hash)
+        {
+            if (slots == null) {
+                allocateSlots(initialSlots);
+            }
+
+            int index = find(key, length, hash);
+            if (index < 0) {
+                return false;
+            }
+
+            if (size + 1 > threshold) {
+                rehash();
+                index = emptySlot(hash);
+            }
+            insert(index, key, length, hash);
+            return true;
+        }
+
+        synchronized void addAll(KeyBatch batch, int start, int end, boolean[] added)
+        {
+            for (int j = start; j < end; j++) {
+                int i = batch.order[j];
+                added[i] = add(batch.key(i), batch.length(i), batch.hashes1[i]);
+            }
+        }
+
+        synchronized void addAbsent(byte[] key, int length, long hash)
+        {
+            if (slots == null) {
+                allocateSlots(initialSlots);
+            }
+            if (size + 1 > threshold) {
+                rehash();
+            }
+            // no key comparison on the probe sequence
+            insert(emptySlot(hash), key, length, hash);
+        }
+
+        synchronized boolean contains(byte[] key, int length, long hash)
+        {
+            return slots != null && find(key, length, hash) < 0;
+        }
+
+        synchronized long size()
+        {
+            return size;
+        }
+
+        synchronized int rehashes()
+        {
+            return rehashes;
+        }
+
+        // returns the index of the empty slot where the key would go, or -1 if the key is held
+        private int find(byte[] key, int length, long hash)
+        {
+            long tag = (hash >>> 32) & 0xffff;
+            int index = (int) hash & mask;
+            while (true) {
+                long slot = slots.get(index);
+                if (slot == 0) {
+                    return index;
+                }
+                if ((slot >>> 48) == tag && equalsAt((slot & ADDRESS_MASK) - 1, key, length)) {
+                    return -1;
+                }
+                index = (index + 1) & mask;
+            }
+        }
+
+        private int emptySlot(long hash)
+        {
+            int index = (int) hash & mask;
+            while (slots.get(index) != 0) {
+                index = (index + 1) & mask;
+            }
+            return index;
+        }
+
+        private void insert(int index, byte[] key, int length, long hash)
+        {
+            long address = append(key, length);
+            slots.put(index, (((hash >>> 32) & 0xffff) << 48) | (address + 1));
+            size++;
+        }
+
+        private void allocateSlots(int count)
+        {
+            reserve((long) count * 8);
+            slotBuffer = allocateDirect(count * 8);
+            slots = slotBuffer.asLongBuffer();
+            mask = count - 1;
+            threshold = (int) Math.min(count * loadFactor, count - 1);
+        }
+
+        private long append(byte[] key, int length)
+        {
+            if (arena == null || arena.remaining() < 4 + length) {
+                if (arenas.size() == 0xffff) {
+                    throw new DataException("off-heap key store ran out of arenas");
+                }
+                // arenas double from MIN_ARENA_SIZE so that a small store stays small
+                int arenaSize = arena == null ? MIN_ARENA_SIZE : Math.min(arena.capacity() * 2, MAX_ARENA_SIZE);
+                arenaSize = Math.max(arenaSize, 4 + length);
+                reserve(arenaSize);
+                arena = allocateDirect(arenaSize);
+                arenas.add(arena);
+            }
+            long address = ((long) (arenas.size() - 1) << 32) | arena.position();
+            arena.putInt(length);
+            arena.put(key, 0, length);
+            return address;
+        }
+
+        private boolean equalsAt(long address, byte[] key, int length)
+        {
+            ByteBuffer buffer = arenas.get((int) (address >>> 32));
+            int offset = (int) address;
+            if (buffer.getInt(offset) != length) {
+                return false;
+            }
+            offset += 4;
+            for (int i = 0; i < length; i++) {
+                if (buffer.get(offset + i) != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // copies the key at the address into scratch and returns its length
+        private int readKey(long address)
+        {
+            ByteBuffer buffer = arenas.get((int) (address >>> 32));
+            int offset = (int) address;
+            int length = buffer.getInt(offset);
+            if (scratch.length < length) {
+                scratch = new byte[length];
+            }
+            for (int i = 0; i < length; i++) {
+                scratch[i] = buffer.get(offset + 4 + i);
+            }
+            return length;
+        }
+
+        private void rehash()
+        {
+            int oldCount = mask + 1;
+            if (oldCount >= MAX_SLOTS) {
+                throw new DataException("off-heap key store stripe is full: " + size + " keys");
+            }
+            ByteBuffer oldBuffer = slotBuffer;
+            LongBuffer old = slots;
+            allocateSlots(oldCount * 2);
+            rehashes++;
+            for (int i = 0; i < oldCount; i++) {
+                long slot = old.get(i);
+                if (slot == 0) {
+                    continue;
+                }
+                long address = (slot & ADDRESS_MASK) - 1;
+                int length = readKey(address);
+                slots.put(emptySlot(Murmur3.hash64(scratch, length)), slot);
+            }
+            if (DirectMemory.release(oldBuffer)) {
+                unreserve((long) oldCount * 8);
+            }
+        }
+
+        private ByteBuffer allocateDirect(int bytes)
+        {
+            try {
+                return ByteBuffer.allocateDirect(bytes);
+            }
+            catch (OutOfMemoryError e) {
+                // other users of direct memory, e.g. the page buffers, share the limit of the JVM
+                unreserve(bytes);
+                throw new DataException(String.format(
+                        "off-heap key store failed to allocate %d bytes of direct memory with %d bytes reserved. "
+                                + "lower off_heap_capacity or raise -XX:MaxDirectMemorySize",
+                        bytes, reserved.get()), e);
+            }
+        }
+    }
+}
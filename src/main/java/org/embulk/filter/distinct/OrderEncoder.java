@@ -0,0 +1,123 @@
+package org.embulk.filter.distinct;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.time.Timestamp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Encodes the value of the ordering column of max_by and min_by so that unsigned
+ * byte order equals value order. Nulls come before every value; strings are
+ * ordered by code points.
+ *
+ * With key transforms the value is transformed as {@link KeyEncoder} does for the key,
+ * so that check_sorted sees the order of the values the keys are made of.
+ */
+class OrderEncoder
+{
+    private final Column column;
+    private final byte tag;
+    private boolean trim;
+    private boolean lower;
+    private long truncateNanos;
+    private double roundScale;
+
+    OrderEncoder(Column column)
+    {
+        this(column, null);
+    }
+
+    /**
+     * @param keyTransforms the key transforms of the column, or null for none
+     */
+    OrderEncoder(Column column, List<KeyTransform> keyTransforms)
+    {
+        this.column = column;
+        this.tag = KeyEncoder.tagOf(column.getType());
+        if (tag == KeyEncoder.TAG_JSON) {
+            throw new IllegalArgumentException("json columns have no order: " + column.getName());
+        }
+        if (keyTransforms != null) {
+            for (KeyTransform transform : keyTransforms) {
+                switch (transform.getKind()) {
+                    case TRIM:
+                        trim = true;
+                        break;
+                    case LOWER:
+                        lower = true;
+                        break;
+                    case TRUNCATE_TIMESTAMP:
+                        truncateNanos = transform.getUnitNanos();
+                        break;
+                    default:
+                        roundScale = Math.pow(10, transform.getDigits());
+                        break;
+                }
+            }
+        }
+    }
+
+    byte[] encode(PageReader pageReader)
+    {
+        if (pageReader.isNull(column)) {
+            return new byte[] {0};
+        }
+        switch (tag) {
+            case KeyEncoder.TAG_BOOLEAN:
+                return new byte[] {1, pageReader.getBoolean(column) ? (byte) 1 : (byte) 0};
+            case KeyEncoder.TAG_LONG:
+                return withLongs(pageReader.getLong(column) ^ Long.MIN_VALUE);
+            case KeyEncoder.TAG_DOUBLE:
+                double number = pageReader.getDouble(column);
+                if (roundScale != 0) {
+                    // values too large to have a fraction are scaled too, to keep their order
+                    double scaled = number * roundScale;
+                    number = Math.abs(scaled) < 0x1p52 ? KeyEncoder.round(number, roundScale) : scaled;
+                }
+                long bits = Double.doubleToLongBits(number);
+                // negative values reverse their order, and every value moves above the sign flip
+                return withLongs(bits ^ ((bits >> 63) | Long.MIN_VALUE));
+            case KeyEncoder.TAG_TIMESTAMP:
+                Timestamp timestamp = pageReader.getTimestamp(column);
+                return withLongs(KeyEncoder.truncateEpochSecond(timestamp.getEpochSecond(), truncateNanos) ^ Long.MIN_VALUE,
+                                 KeyEncoder.truncateNano(timestamp.getNano(), truncateNanos));
+            default:
+                byte[] string = transform(pageReader.getString(column)).getBytes(StandardCharsets.UTF_8);
+                byte[] encoded = new byte[string.length + 1];
+                encoded[0] = 1;
+                System.arraycopy(string, 0, encoded, 1, string.length);
+                return encoded;
+        }
+    }
+
+    // trims and lowers as KeyEncoder#writeString does
+    private String transform(String value)
+    {
+        if (trim) {
+            value = value.trim();
+        }
+        if (!lower) {
+            return value;
+        }
+        char[] chars = value.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(chars[i]);
+        }
+        return new String(chars);
+    }
+
+    private static byte[] withLongs(long... values)
+    {
+        byte[] encoded = new byte[1 + values.length * 8];
+        encoded[0] = 1;
+        int offset = 1;
+        for (long value : values) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                encoded[offset++] = (byte) (value >>> shift);
+            }
+        }
+        return encoded;
+    }
+}
@@ -0,0 +1,111 @@
+package org.embulk.filter.distinct;
+
+/**
+ * Puts a bloom filter in front of another store. A key that misses the filter was never
+ * added, so it is added to the store without a lookup, and {@link #contains} answers
+ * without touching the store. Only keys that hit the filter are looked up.
+ *
+ * The filter is split into stripes selected by the key hash. A key is
+ * checked and added under the lock of its stripe, so two tasks adding the same new key
+ * cannot both see a miss.
+ */
+class PrefilteredKeyStore
+        implements KeyStore
+{
+    private final KeyStore store;
+    private final BloomFilter[] filters;
+
+    PrefilteredKeyStore(KeyStore store, long expectedKeys, double fpp, int stripeCount)
+    {
+        this.store = store;
+        this.filters = new BloomFilter[stripeCount];
+        long expectedKeysPerStripe = Math.max(expectedKeys / stripeCount, 1);
+        for (int i = 0; i < stripeCount; i++) {
+            filters[i] = new BloomFilter(expectedKeysPerStripe, fpp);
+        }
+    }
+
+    @Override
+    public boolean add(byte[] key, int length)
+    {
+        // copied out of the scratch array of the thread, which the store behind may reuse
+        long[] hash = Murmur3.hash128(key, length);
+        long hash1 = hash[0];
+        long hash2 = hash[1];
+        BloomFilter filter = filters[KeyStores.shardOf(hash2, filters.length)];
+        synchronized (filter) {
+            if (filter.put(hash1, hash2)) {
+                store.addAbsent(key, length);
+                return true;
+            }
+            return store.add(key, length);
+        }
+    }
+
+    @Override
+    public void addAbsent(byte[] key, int length)
+    {
+        long[] hash = Murmur3.hash128(key, length);
+        long hash1 = hash[0];
+        long hash2 = hash[1];
+        BloomFilter filter = filters[KeyStores.shardOf(hash2, filters.length)];
+        synchronized (filter) {
+            filter.put(hash1, hash2);
+            store.addAbsent(key, length);
+        }
+    }
+
+    @Override
+    public void addAll(KeyBatch batch, boolean[] added)
+    {
+        KeyBatch.addEach(this, batch, added);
+    }
+
+    @Override
+    public boolean contains(byte[] key, int length)
+    {
+        long[] hash = Murmur3.hash128(key, length);
+        long hash1 = hash[0];
+        long hash2 = hash[1];
+        BloomFilter filter = filters[KeyStores.shardOf(hash2, filters.length)];
+        synchronized (filter) {
+            return filter.mightContain(hash1, hash2) && store.contains(key, length);
+        }
+    }
+
+    @Override
+    public long size()
+    {
+        return store.size();
+    }
+
+    @Override
+    public long estimatedBytes()
+    {
+        long bytes = store.estimatedBytes();
+        for (BloomFilter filter : filters) {
+            bytes += filter.estimatedBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long rehashes()
+    {
+        return store.rehashes();
+    }
+
+    /**
+     * @return the false positive probability of the filter for the keys added so far
+     */
+    double expectedFpp()
+    {
+        double fpp = 0;
+        for (BloomFilter filter : filters) {
+            synchronized (filter) {
+                fpp += filter.expectedFpp();
+            }
+        }
+        return fpp / filters.length;
+    }
+}
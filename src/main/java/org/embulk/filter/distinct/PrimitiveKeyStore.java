@@ -0,0 +1,365 @@
+package org.embulk.filter.distinct;
+
+import org.embulk.filter.distinct.DistinctFilterPlugin.PluginTask;
+import org.embulk.spi.Column;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.time.Timestamp;
+import org.embulk.spi.type.Type;
+import org.embulk.spi.type.Types;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the values of a single boolean, long, double or timestamp distinct column
+ * themselves in primitive tables, so that a record is checked without encoding
+ * its key into bytes or allocating. Values are exact, so nothing collides.
+ *
+ * The subclass for the column type is chosen once; a timestamp is kept as
+ * its epoch seconds and nanoseconds packed into two longs.
+ */
+abstract class PrimitiveKeyStore
+{
+    private final LongHashSet[] shards;
+    private volatile boolean containsNull;
+
+    private PrimitiveKeyStore(int width, int shardCount, long expectedKeys, double loadFactor)
+    {
+        this.shards = new LongHashSet[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new LongHashSet(width, (expectedKeys + shardCount - 1) / shardCount, loadFactor);
+        }
+    }
+
+    /**
+     * @return the store for the distinct column of the task, or null if the task
+     * needs encoded keys: several columns, other types, or another key_mode or store,
+     * spilling, state, a prefilter, a window, key transforms or a key service
+     */
+    static PrimitiveKeyStore create(PluginTask task)
+    {
+        if (task.getDistinctColumns().size() != 1
+                || task.getKeyMode() != KeyMode.EXACT
+                || task.getStore() != StoreType.HEAP
+                || task.getExpectedKeys().isPresent()
+                || task.getMemoryBudget().isPresent()
+                || task.getStatePath().isPresent()
+                || task.getWindow().isPresent()
+                || !task.getKeyTransforms().isEmpty()
+                || task.getKeyService().isPresent()) {
+            return null;
+        }
+        Column column = task.getDistinctColumns().get(0);
+        Type type = column.getType();
+        int shardCount = task.getShards();
+        long expectedKeys = task.getExpectedDistinctKeys().or(0L);
+        double loadFactor = task.getLoadFactor();
+        if (Types.LONG.equals(type)) {
+            return new LongColumn(column, shardCount, expectedKeys, loadFactor);
+        }
+        else if (Types.DOUBLE.equals(type)) {
+            return new DoubleColumn(column, shardCount, expectedKeys, loadFactor);
+        }
+        else if (Types.BOOLEAN.equals(type)) {
+            return new BooleanColumn(column, shardCount, expectedKeys, loadFactor);
+        }
+        else if (Types.TIMESTAMP.equals(type)) {
+            return new TimestampColumn(column, shardCount, expectedKeys, loadFactor);
+        }
+        return null;
+    }
+
+    /**
+     * Adds the value of the current record of the reader.
+     *
+     * @return true if the value was not seen before
+     */
+    abstract boolean add(PageReader pageReader);
+
+    /**
+     * Collects the value of the current record of the reader to be added by {@link #addAll}.
+     */
+    abstract void collect(PageReader pageReader, Batch batch);
+
+    /**
+     * Adds the collected values in order, taking each shard's lock once.
+     *
+     * @param added set to whether each value was not seen before
+     */
+    void addAll(Batch batch, boolean[] added)
+    {
+        for (int i = 0; i < batch.size; i++) {
+            batch.shards[i] = batch.nulls[i] ? 0 : shardIndexOf(batch.firsts[i], batch.seconds[i]);
+        }
+        if (batch.shardStarts.length < shards.length + 1) {
+            batch.shardStarts = new int[shards.length + 1];
+        }
+        KeyBatch.groupByShard(batch.shards, batch.size, shards.length, batch.order, batch.shardStarts);
+        for (int s = 0; s < shards.length; s++) {
+            int start = batch.shardStarts[s];
+            int end = batch.shardStarts[s + 1];
+            if (start == end) {
+                continue;
+            }
+            LongHashSet shard = shards[s];
+            synchronized (shard) {
+                for (int j = start; j < end; j++) {
+                    int i = batch.order[j];
+                    if (batch.nulls[i]) {
+                        added[i] = addNull();
+                    }
+                    else {
+                        added[i] = shard.add(batch.firsts[i], batch.seconds[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    long size()
+    {
+        long size = containsNull ? 1 : 0;
+        for (LongHashSet shard : shards) {
+            synchronized (shard) {
+                size += shard.size();
+            }
+        }
+        return size;
+    }
+
+    long estimatedBytes()
+    {
+        long bytes = 0;
+        for (LongHashSet shard : shards) {
+            synchronized (shard) {
+                bytes += shard.estimatedBytes();
+            }
+        }
+        return bytes;
+    }
+
+    long rehashes()
+    {
+        long rehashes = 0;
+        for (LongHashSet shard : shards) {
+            synchronized (shard) {
+                rehashes += shard.rehashes();
+            }
+        }
+        return rehashes;
+    }
+
+    boolean addNull()
+    {
+        if (containsNull) {
+            return false;
+        }
+        synchronized (this) {
+            if (containsNull) {
+                return false;
+            }
+            containsNull = true;
+            return true;
+        }
+    }
+
+    boolean add(long value)
+    {
+        return add(value, 0L);
+    }
+
+    boolean add(long first, long second)
+    {
+        LongHashSet shard = shards[shardIndexOf(first, second)];
+        synchronized (shard) {
+            return shard.add(first, second);
+        }
+    }
+
+    private int shardIndexOf(long first, long second)
+    {
+        return KeyStores.shardOf(Murmur3.fmix64(first ^ Long.rotateLeft(second, 32)), shards.length);
+    }
+
+    private static final class LongColumn
+            extends PrimitiveKeyStore
+    {
+        private final Column column;
+
+        LongColumn(Column column, int shardCount, long expectedKeys, double loadFactor)
+        {
+            super(1, shardCount, expectedKeys, loadFactor);
+            this.column = column;
+        }
+
+        @Override
+        boolean add(PageReader pageReader)
+        {
+            if (pageReader.isNull(column)) {
+                return addNull();
+            }
+            return add(pageReader.getLong(column));
+        }
+
+        @Override
+        void collect(PageReader pageReader, Batch batch)
+        {
+            if (pageReader.isNull(column)) {
+                batch.addNull();
+            }
+            else {
+                batch.add(pageReader.getLong(column), 0L);
+            }
+        }
+    }
+
+    private static final class DoubleColumn
+            extends PrimitiveKeyStore
+    {
+        private final Column column;
+
+        DoubleColumn(Column column, int shardCount, long expectedKeys, double loadFactor)
+        {
+            super(1, shardCount, expectedKeys, loadFactor);
+            this.column = column;
+        }
+
+        @Override
+        boolean add(PageReader pageReader)
+        {
+            if (pageReader.isNull(column)) {
+                return addNull();
+            }
+            // same identity as Double#equals: NaNs are equal, 0.0 and -0.0 are not
+            return add(Double.doubleToLongBits(pageReader.getDouble(column)));
+        }
+
+        @Override
+        void collect(PageReader pageReader, Batch batch)
+        {
+            if (pageReader.isNull(column)) {
+                batch.addNull();
+            }
+            else {
+                batch.add(Double.doubleToLongBits(pageReader.getDouble(column)), 0L);
+            }
+        }
+    }
+
+    private static final class BooleanColumn
+            extends PrimitiveKeyStore
+    {
+        private final Column column;
+
+        BooleanColumn(Column column, int shardCount, long expectedKeys, double loadFactor)
+        {
+            super(1, shardCount, expectedKeys, loadFactor);
+            this.column = column;
+        }
+
+        @Override
+        boolean add(PageReader pageReader)
+        {
+            if (pageReader.isNull(column)) {
+                return addNull();
+            }
+            return add(pageReader.getBoolean(column) ? 1L : 0L);
+        }
+
+        @Override
+        void collect(PageReader pageReader, Batch batch)
+        {
+            if (pageReader.isNull(column)) {
+                batch.addNull();
+            }
+            else {
+                batch.add(pageReader.getBoolean(column) ? 1L : 0L, 0L);
+            }
+        }
+    }
+
+    private static final class TimestampColumn
+            extends PrimitiveKeyStore
+    {
+        private final Column column;
+
+        TimestampColumn(Column column, int shardCount, long expectedKeys, double loadFactor)
+        {
+            super(2, shardCount, expectedKeys, loadFactor);
+            this.column = column;
+        }
+
+        @Override
+        boolean add(PageReader pageReader)
+        {
+            if (pageReader.isNull(column)) {
+                return addNull();
+            }
+            Timestamp timestamp = pageReader.getTimestamp(column);
+            return add(timestamp.getEpochSecond(), timestamp.getNano());
+        }
+
+        @Override
+        void collect(PageReader pageReader, Batch batch)
+        {
+            if (pageReader.isNull(column)) {
+                batch.addNull();
+            }
+            else {
+                Timestamp timestamp = pageReader.getTimestamp(column);
+                batch.add(timestamp.getEpochSecond(), timestamp.getNano());
+            }
+        }
+    }
+
+    /**
+     * The values of the records of a page, reused from page to page. Not thread-safe.
+     */
+    static final class Batch
+    {
+        private long[] firsts = new long[256];
+        private long[] seconds = new long[256];
+        private boolean[] nulls = new boolean[256];
+        private int[] shards = new int[256];
+        private int[] order = new int[256];
+        private int[] shardStarts = new int[65];
+        private int size;
+
+        void clear()
+        {
+            size = 0;
+        }
+
+        int size()
+        {
+            return size;
+        }
+
+        private void add(long first, long second)
+        {
+            ensureCapacity();
+            firsts[size] = first;
+            seconds[size] = second;
+            nulls[size] = false;
+            size++;
+        }
+
+        private void addNull()
+        {
+            ensureCapacity();
+            nulls[size] = true;
+            size++;
+        }
+
+        private void ensureCapacity()
+        {
+            if (size == firsts.length) {
+                int capacity = size * 2;
+                firsts = Arrays.copyOf(firsts, capacity);
+                seconds = Arrays.copyOf(seconds, capacity);
+                nulls = Arrays.copyOf(nulls, capacity);
+                shards = new int[capacity];
+                order = new int[capacity];
+            }
+        }
+    }
+}
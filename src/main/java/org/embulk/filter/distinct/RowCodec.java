@@ -0,0 +1,157 @@
+package org.embulk.filter.distinct;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.embulk.spi.json.JsonParser;
+import org.embulk.spi.time.Timestamp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Serializes whole records so that they can be kept aside, e.g. in spill files,
+ * and written to a {@link PageBuilder} later.
+ */
+class RowCodec
+{
+    private final Column[] columns;
+    private final byte[] tags;
+    private final JsonParser jsonParser = new JsonParser();
+    private byte[] buffer = new byte[256];
+    private int length;
+
+    RowCodec(Schema schema)
+    {
+        this.columns = schema.getColumns().toArray(new Column[schema.getColumnCount()]);
+        this.tags = new byte[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            tags[i] = KeyEncoder.tagOf(columns[i].getType());
+        }
+    }
+
+    void encode(PageReader pageReader)
+    {
+        length = 0;
+        for (int i = 0; i < columns.length; i++) {
+            Column column = columns[i];
+            if (pageReader.isNull(column)) {
+                writeByte(KeyEncoder.TAG_NULL);
+                continue;
+            }
+            writeByte(tags[i]);
+            switch (tags[i]) {
+                case KeyEncoder.TAG_BOOLEAN:
+                    writeByte(pageReader.getBoolean(column) ? (byte) 1 : (byte) 0);
+                    break;
+                case KeyEncoder.TAG_LONG:
+                    writeLong(pageReader.getLong(column));
+                    break;
+                case KeyEncoder.TAG_DOUBLE:
+                    writeLong(Double.doubleToRawLongBits(pageReader.getDouble(column)));
+                    break;
+                case KeyEncoder.TAG_STRING:
+                    writeBytes(pageReader.getString(column).getBytes(StandardCharsets.UTF_8));
+                    break;
+                case KeyEncoder.TAG_TIMESTAMP:
+                    Timestamp timestamp = pageReader.getTimestamp(column);
+                    writeLong(timestamp.getEpochSecond());
+                    writeLong(timestamp.getNano());
+                    break;
+                default:
+                    writeBytes(pageReader.getJson(column).toJson().getBytes(StandardCharsets.UTF_8));
+                    break;
+            }
+        }
+    }
+
+    byte[] getBuffer()
+    {
+        return buffer;
+    }
+
+    int getLength()
+    {
+        return length;
+    }
+
+    /**
+     * Sets the record read from the buffer to the builder. The caller adds the record.
+     */
+    void decode(ByteBuffer row, PageBuilder pageBuilder)
+    {
+        for (Column column : columns) {
+            byte tag = row.get();
+            switch (tag) {
+                case KeyEncoder.TAG_NULL:
+                    pageBuilder.setNull(column);
+                    break;
+                case KeyEncoder.TAG_BOOLEAN:
+                    pageBuilder.setBoolean(column, row.get() != 0);
+                    break;
+                case KeyEncoder.TAG_LONG:
+                    pageBuilder.setLong(column, row.getLong());
+                    break;
+                case KeyEncoder.TAG_DOUBLE:
+                    pageBuilder.setDouble(column, Double.longBitsToDouble(row.getLong()));
+                    break;
+                case KeyEncoder.TAG_STRING:
+                    pageBuilder.setString(column, readString(row));
+                    break;
+                case KeyEncoder.TAG_TIMESTAMP:
+                    long epochSecond = row.getLong();
+                    pageBuilder.setTimestamp(column, Timestamp.ofEpochSecond(epochSecond, row.getLong()));
+                    break;
+                default:
+                    pageBuilder.setJson(column, jsonParser.parse(readString(row)));
+                    break;
+            }
+        }
+    }
+
+    private static String readString(ByteBuffer row)
+    {
+        byte[] bytes = new byte[row.getInt()];
+        row.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void ensureCapacity(int additional)
+    {
+        if (length + additional > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + additional));
+        }
+    }
+
+    private void writeByte(byte value)
+    {
+        ensureCapacity(1);
+        buffer[length++] = value;
+    }
+
+    private void writeInt(int value)
+    {
+        ensureCapacity(4);
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            buffer[length++] = (byte) (value >>> shift);
+        }
+    }
+
+    private void writeLong(long value)
+    {
+        ensureCapacity(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buffer[length++] = (byte) (value >>> shift);
+        }
+    }
+
+    private void writeBytes(byte[] bytes)
+    {
+        writeInt(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+}
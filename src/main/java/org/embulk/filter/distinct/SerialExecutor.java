@@ -0,0 +1,51 @@
+package org.embulk.filter.distinct;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks one at a time in submission order on a shared executor, so that the
+ * pages of one output are decided in order while outputs share the workers.
+ */
+class SerialExecutor
+        implements Executor
+{
+    private final Executor executor;
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+    private Runnable active;
+
+    SerialExecutor(Executor executor)
+    {
+        this.executor = executor;
+    }
+
+    @Override
+    public synchronized void execute(final Runnable task)
+    {
+        tasks.add(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    task.run();
+                }
+                finally {
+                    scheduleNext();
+                }
+            }
+        });
+        if (active == null) {
+            scheduleNext();
+        }
+    }
+
+    private synchronized void scheduleNext()
+    {
+        active = tasks.poll();
+        if (active != null) {
+            executor.execute(active);
+        }
+    }
+}
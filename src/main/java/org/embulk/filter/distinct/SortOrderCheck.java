@@ -0,0 +1,89 @@
+package org.embulk.filter.distinct;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.DataException;
+import org.embulk.spi.PageReader;
+
+import java.util.List;
+
+/**
+ * Fails when the keys of input_sorted are not sorted, so that a record that is not
+ * adjacent to its duplicates is not emitted twice silently.
+ *
+ * The direction of each distinct column is taken from the first key that differs from
+ * the previous one first at that column, so a column may be sorted ascending or descending.
+ * Values are compared as {@link OrderEncoder} orders them, after the key transforms of their
+ * column, since the input only needs to be grouped by the keys; changes from or to null are
+ * not checked, since databases differ in where they sort nulls, so a null between records
+ * of a key is not caught. Each task checks only its own records, so the order across tasks
+ * and the duplicates it leaves are not checked either.
+ */
+class SortOrderCheck
+{
+    private final List<Column> columns;
+    private final OrderEncoder[] encoders;
+    private final byte[][] previous;
+    // 1 for ascending, -1 for descending, 0 until known
+    private final int[] directions;
+    private boolean hasPrevious;
+
+    /**
+     * @param keyTransforms the key transforms of each column
+     */
+    SortOrderCheck(List<Column> columns, List<List<KeyTransform>> keyTransforms)
+    {
+        this.columns = columns;
+        this.encoders = new OrderEncoder[columns.size()];
+        for (int i = 0; i < encoders.length; i++) {
+            encoders[i] = new OrderEncoder(columns.get(i), keyTransforms.get(i));
+        }
+        this.previous = new byte[encoders.length][];
+        this.directions = new int[encoders.length];
+    }
+
+    /**
+     * Checks the key of the current record, which differs from the key of the previous one.
+     */
+    void check(PageReader pageReader)
+    {
+        byte[][] current = new byte[encoders.length][];
+        for (int i = 0; i < encoders.length; i++) {
+            current[i] = encoders[i].encode(pageReader);
+        }
+        if (hasPrevious) {
+            for (int i = 0; i < encoders.length; i++) {
+                int order = compare(previous[i], current[i]);
+                if (order == 0) {
+                    continue;
+                }
+                if (previous[i][0] != 0 && current[i][0] != 0) {
+                    if (directions[i] == 0) {
+                        directions[i] = order;
+                    }
+                    else if (directions[i] != order) {
+                        throw new DataException(String.format(
+                                "input_sorted: records are not sorted by the distinct columns. column '%s' is sorted %s, but a later record breaks the order",
+                                columns.get(i).getName(), directions[i] > 0 ? "ascending" : "descending"));
+                    }
+                }
+                break;
+            }
+        }
+        System.arraycopy(current, 0, previous, 0, current.length);
+        hasPrevious = true;
+    }
+
+    // returns 1 if the values go up from a to b, -1 if they go down
+    private static int compare(byte[] a, byte[] b)
+    {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            int x = a[i] & 0xff;
+            int y = b[i] & 0xff;
+            if (x != y) {
+                return x < y ? 1 : -1;
+            }
+        }
+        return a.length == b.length ? 0 : (a.length < b.length ? 1 : -1);
+    }
+}
@@ -0,0 +1,426 @@
+package org.embulk.filter.distinct;
+
+import org.embulk.spi.DataException;
+import org.embulk.spi.Exec;
+import org.embulk.spi.PageBuilder;
+import org.slf4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps records aside on local disk once the in-memory key store reached its budget.
+ *
+ * Spilled records are hash-partitioned by their encoded key. All outputs of a run share
+ * the partitions of the current generation; when the last open output finishes it drains
+ * the generation partition by partition, emitting the first record of every key that was
+ * neither in the in-memory store nor in an earlier, already drained generation.
+ * The keys emitted by the drains of a partition are appended to one key file, so a drain
+ * reads that file and the partition of its own generation rather than every earlier generation.
+ * Only one partition's keys are held in memory at a time.
+ */
+class SpillManager
+{
+    private static final Logger logger = Exec.getLogger(SpillManager.class);
+    private static final int WRITE_BUFFER_SIZE = 64 << 10;
+
+    private final Path directory;
+    private final int partitionCount;
+    private final Object drainLock = new Object();
+    private final List<Partition[]> generations = new ArrayList<>();
+    // the keys emitted by the drains so far, by partition
+    private final Path[] drainedKeys;
+    private int openOutputs;
+    private boolean dirty;
+    private volatile boolean spilling;
+
+    SpillManager(Path parent, int partitionCount)
+    {
+        this.partitionCount = partitionCount;
+        try {
+            Files.createDirectories(parent);
+            this.directory = Files.createTempDirectory(parent, "embulk-filter-distinct");
+        }
+        catch (IOException e) {
+            throw new DataException("failed to create a spill directory in " + parent, e);
+        }
+        directory.toFile().deleteOnExit();
+        this.drainedKeys = new Path[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            drainedKeys[i] = directory.resolve(String.format("drained-part-%d.keys", i));
+            drainedKeys[i].toFile().deleteOnExit();
+        }
+        generations.add(newGeneration());
+    }
+
+    boolean isSpilling()
+    {
+        return spilling;
+    }
+
+    void startSpilling(long keys, long bytes)
+    {
+        if (!spilling) {
+            logger.info("distinct keys reached the memory budget with {} keys ({} bytes). spilling new keys to {}",
+                        keys, bytes, directory);
+            spilling = true;
+        }
+    }
+
+    synchronized void register()
+    {
+        openOutputs++;
+    }
+
+    /**
+     * @return the generation that the caller must drain, or -1
+     */
+    synchronized int unregister()
+    {
+        if (--openOutputs > 0) {
+            return -1;
+        }
+        return nextGeneration();
+    }
+
+    /**
+     * Starts a new generation for records written from now on.
+     *
+     * @return the generation to drain, or -1 if nothing was written to it
+     */
+    synchronized int nextGeneration()
+    {
+        if (!dirty) {
+            return -1;
+        }
+        dirty = false;
+        generations.add(newGeneration());
+        return generations.size() - 2;
+    }
+
+    void write(byte[] key, int keyLength, byte[] row, int rowLength)
+    {
+        Partition[] partitions;
+        synchronized (this) {
+            partitions = generations.get(generations.size() - 1);
+            dirty = true;
+        }
+        long hash = Murmur3.hash64(key, keyLength);
+        Partition partition = partitions[(int) ((hash >>> 1) % partitionCount)];
+        try {
+            partition.write(key, keyLength, row, rowLength);
+        }
+        catch (IOException e) {
+            throw new DataException("failed to write a spill file", e);
+        }
+    }
+
+    /**
+     * @param stateKeys where the keys of drained records are recorded, or null
+     * @return the number of records emitted
+     */
+    long drain(int generation, KeyStore memoryStore, StateStore.TaskKeys stateKeys, RowCodec rowCodec, PageBuilder pageBuilder)
+    {
+        synchronized (drainLock) {
+            Partition[] partitions = generation(generation);
+            long emitted = 0;
+            try {
+                for (int i = 0; i < partitionCount; i++) {
+                    partitions[i].closeWriter();
+                    if (partitions[i].records == 0) {
+                        continue;
+                    }
+                    KeyStore seen = new ExactKeyStore(1);
+                    readDrainedKeys(drainedKeys[i], seen);
+                    emitted += emit(partitions[i], memoryStore, seen, drainedKeys[i], stateKeys, rowCodec, pageBuilder);
+                    Files.deleteIfExists(partitions[i].path);
+                }
+            }
+            catch (IOException e) {
+                throw new DataException("failed to read a spill file", e);
+            }
+            logger.info("drained spill generation {}: emitted {} distinct records", generation, emitted);
+            return emitted;
+        }
+    }
+
+    /**
+     * @return the number of records written to spill files so far
+     */
+    synchronized long spilledRecords()
+    {
+        long records = 0;
+        for (Partition[] partitions : generations) {
+            for (Partition partition : partitions) {
+                records += partition.records();
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Deletes the spill files and the directory. Files that can not be deleted are left
+     * to be deleted on exit.
+     */
+    synchronized void close()
+    {
+        try {
+            for (Partition[] partitions : generations) {
+                for (Partition partition : partitions) {
+                    partition.closeWriter();
+                    Files.deleteIfExists(partition.path);
+                }
+            }
+            for (Path keys : drainedKeys) {
+                Files.deleteIfExists(keys);
+            }
+            Files.deleteIfExists(directory);
+        }
+        catch (IOException e) {
+            logger.warn("failed to delete the spill files in " + directory, e);
+        }
+    }
+
+    int getPartitionCount()
+    {
+        return partitionCount;
+    }
+
+    /**
+     * Reads the entries of a partition of a drained generation in the order they were written.
+     */
+    void readPartition(int generation, int partition, EntryVisitor visitor)
+    {
+        Partition source = generation(generation)[partition];
+        try {
+            source.closeWriter();
+            if (source.records == 0) {
+                return;
+            }
+            try (DataInputStream in = source.openReader()) {
+                byte[] key = new byte[64];
+                byte[] row = new byte[256];
+                while (true) {
+                    int keyLength = readIntOrEof(in);
+                    if (keyLength < 0) {
+                        break;
+                    }
+                    key = readFully(in, key, keyLength);
+                    int rowLength = in.readInt();
+                    row = readFully(in, row, rowLength);
+                    visitor.visit(key, keyLength, row, rowLength);
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new DataException("failed to read a spill file", e);
+        }
+    }
+
+    interface EntryVisitor
+    {
+        /**
+         * The arrays are reused for the next entry.
+         */
+        void visit(byte[] key, int keyLength, byte[] row, int rowLength);
+    }
+
+    private synchronized Partition[] generation(int index)
+    {
+        return generations.get(index);
+    }
+
+    private Partition[] newGeneration()
+    {
+        Partition[] partitions = new Partition[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = new Partition(directory.resolve(String.format("gen-%d-part-%d.spill", generations.size(), i)));
+        }
+        return partitions;
+    }
+
+    private static void readDrainedKeys(Path path, KeyStore seen)
+            throws IOException
+    {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), WRITE_BUFFER_SIZE))) {
+            byte[] key = new byte[64];
+            while (true) {
+                int keyLength = readIntOrEof(in);
+                if (keyLength < 0) {
+                    break;
+                }
+                key = readFully(in, key, keyLength);
+                seen.addAbsent(key, keyLength);
+            }
+        }
+    }
+
+    private static long emit(Partition partition, KeyStore memoryStore, KeyStore seen, Path drainedKeys,
+                             StateStore.TaskKeys stateKeys, RowCodec rowCodec, PageBuilder pageBuilder)
+            throws IOException
+    {
+        long emitted = 0;
+        try (DataInputStream in = partition.openReader();
+                DataOutputStream keysOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(
+                        drainedKeys, StandardOpenOption.CREATE, StandardOpenOption.APPEND), WRITE_BUFFER_SIZE))) {
+            byte[] key = new byte[64];
+            byte[] row = new byte[256];
+            while (true) {
+                int keyLength = readIntOrEof(in);
+                if (keyLength < 0) {
+                    break;
+                }
+                key = readFully(in, key, keyLength);
+                int rowLength = in.readInt();
+                // a key may have reached the in-memory store while another output started spilling
+                if (memoryStore.contains(key, keyLength) || !seen.add(key, keyLength)) {
+                    skipFully(in, rowLength);
+                    continue;
+                }
+                keysOut.writeInt(keyLength);
+                keysOut.write(key, 0, keyLength);
+                if (stateKeys != null) {
+                    stateKeys.append(key, keyLength);
+                }
+                row = readFully(in, row, rowLength);
+                rowCodec.decode(ByteBuffer.wrap(row, 0, rowLength), pageBuilder);
+                pageBuilder.addRecord();
+                emitted++;
+            }
+        }
+        return emitted;
+    }
+
+    private static int readIntOrEof(DataInputStream in)
+            throws IOException
+    {
+        try {
+            return in.readInt();
+        }
+        catch (EOFException e) {
+            return -1;
+        }
+    }
+
+    private static byte[] readFully(DataInputStream in, byte[] buffer, int length)
+            throws IOException
+    {
+        if (buffer.length < length) {
+            buffer = new byte[Math.max(buffer.length * 2, length)];
+        }
+        in.readFully(buffer, 0, length);
+        return buffer;
+    }
+
+    private static void skipFully(DataInputStream in, int length)
+            throws IOException
+    {
+        int skipped = 0;
+        while (skipped < length) {
+            int n = in.skipBytes(length - skipped);
+            if (n <= 0) {
+                throw new EOFException();
+            }
+            skipped += n;
+        }
+    }
+
+    private static final class Partition
+    {
+        private final Path path;
+        private FileChannel channel;
+        private ByteBuffer buffer;
+        private long records;
+
+        Partition(Path path)
+        {
+            this.path = path;
+        }
+
+        synchronized void write(byte[] key, int keyLength, byte[] row, int rowLength)
+                throws IOException
+        {
+            if (channel == null) {
+                channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                path.toFile().deleteOnExit();
+                buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+            }
+            int entryLength = 8 + keyLength + rowLength;
+            if (buffer.remaining() < entryLength) {
+                flush();
+            }
+            if (buffer.remaining() < entryLength) {
+                ByteBuffer entry = ByteBuffer.allocate(entryLength);
+                put(entry, key, keyLength, row, rowLength);
+                entry.flip();
+                writeFully(entry);
+            }
+            else {
+                put(buffer, key, keyLength, row, rowLength);
+            }
+            records++;
+        }
+
+        synchronized long records()
+        {
+            return records;
+        }
+
+        synchronized void closeWriter()
+                throws IOException
+        {
+            if (channel != null) {
+                flush();
+                channel.close();
+                channel = null;
+                buffer = null;
+            }
+        }
+
+        DataInputStream openReader()
+                throws IOException
+        {
+            return new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(FileChannel.open(path, StandardOpenOption.READ)), WRITE_BUFFER_SIZE));
+        }
+
+        private static void put(ByteBuffer target, byte[] key, int keyLength, byte[] row, int rowLength)
+        {
+            target.putInt(keyLength);
+            target.put(key, 0, keyLength);
+            target.putInt(rowLength);
+            target.put(row, 0, rowLength);
+        }
+
+        private void flush()
+                throws IOException
+        {
+            buffer.flip();
+            writeFully(buffer);
+            buffer.clear();
+        }
+
+        private void writeFully(ByteBuffer source)
+                throws IOException
+        {
+            while (source.hasRemaining()) {
+                channel.write(source);
+            }
+        }
+    }
+}
@@ -0,0 +1,749 @@
+package org.embulk.filter.distinct;
+
+import org.embulk.config.ConfigException;
+import org.embulk.spi.DataException;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keys committed by earlier runs, kept in a local directory so that a run can drop
+ * records that already arrived in a previous one.
+ *
+ * The directory holds immutable segments, one per committed run. A segment starts with
+ * a bloom filter and an index of (64-bit key hash, offset) pairs sorted by hash, followed
+ * by the keys themselves. Segments are memory-mapped when the store is opened, so lookups
+ * go to disk only when a segment's bloom filter reports a possible match.
+ *
+ * Keys first seen in the current run are appended to a pending file of the task that emitted
+ * their records. The files of finished tasks become a new segment on {@link #commit()}, written
+ * to a temporary file and atomically renamed.
+ *
+ * A lookup probes the bloom filter of every segment, so once a commit leaves more than
+ * {@link #MAX_SEGMENTS} segments they are merged into one. Their indexes are already sorted,
+ * so the merge streams them and holds only the bloom filter of the merged segment in memory.
+ *
+ * A long run may {@link #checkpoint()} the keys of its finished tasks into checkpoint files of
+ * the same format, which become segments on commit. Keys of running tasks are never checkpointed,
+ * since their records may not have reached the output yet. A run that fails leaves its checkpoints
+ * behind; the next run maps them like segments when it resumes them, and deletes them otherwise.
+ */
+class StateStore
+        implements Closeable
+{
+    private static final Logger logger = Exec.getLogger(StateStore.class);
+
+    private static final int MAGIC = 0x44535431;  // "DST1"
+    private static final int HEADER_SIZE = 32;
+    private static final double BLOOM_FPP = 0.01;
+    static final int MAX_SEGMENTS = 16;
+    private static final Pattern SEGMENT_NAME = Pattern.compile("(segment|checkpoint)-(\\d+)\\.dat");
+
+    private final Path directory;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final List<Segment> segments = new ArrayList<>();
+    // the keys of tasks, and the keys of finished tasks not persisted yet
+    private final List<TaskKeys> openTaskKeys = new ArrayList<>();
+    private final List<TaskKeys> finishedTaskKeys = new ArrayList<>();
+    private int nextTaskKeysNumber;
+    private int nextSegmentNumber = 1;
+    // checkpoints resumed from a failed run and written by this run, to become segments on commit
+    private final List<Path> checkpoints = new ArrayList<>();
+    private volatile long lastCheckpointNanos = System.nanoTime();
+    private volatile boolean closed;
+
+    private StateStore(Path directory, boolean resumeCheckpoints)
+            throws IOException
+    {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        this.lockChannel = FileChannel.open(directory.resolve("lock"),
+                                            StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.lock = lockChannel.tryLock();
+        if (lock == null) {
+            lockChannel.close();
+            throw new ConfigException("state_path is used by another running embulk process: " + directory);
+        }
+        try {
+            loadSegments(resumeCheckpoints);
+        }
+        catch (IOException | RuntimeException e) {
+            // the lock is released, so that a later run of this process can open the directory
+            closeSegmentsAndLock();
+            throw e;
+        }
+    }
+
+    private void loadSegments(boolean resumeCheckpoints)
+            throws IOException
+    {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.dat")) {
+            for (Path path : stream) {
+                Matcher matcher = SEGMENT_NAME.matcher(path.getFileName().toString());
+                if (!matcher.matches()) {
+                    continue;
+                }
+                nextSegmentNumber = Math.max(nextSegmentNumber, Integer.parseInt(matcher.group(2)) + 1);
+                if (matcher.group(1).equals("segment")) {
+                    segments.add(new Segment(path));
+                }
+                else if (resumeCheckpoints) {
+                    segments.add(new Segment(path));
+                    checkpoints.add(path);
+                }
+                else {
+                    logger.info("deleting checkpoint {} of a failed run", path);
+                    Files.delete(path);
+                }
+            }
+        }
+        // pending keys of tasks of a process that died
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "pending-*.tmp")) {
+            for (Path path : stream) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * @param resumeCheckpoints true to keep the checkpoints of a failed run as if they were committed
+     */
+    static StateStore open(Path directory, boolean resumeCheckpoints)
+    {
+        try {
+            StateStore store = new StateStore(directory, resumeCheckpoints);
+            long keys = 0;
+            for (Segment segment : store.segments) {
+                keys += segment.keyCount;
+            }
+            logger.info("opened state {}: {} keys in {} segments, {} of them resumed checkpoints",
+                        directory, keys, store.segments.size(), store.checkpoints.size());
+            return store;
+        }
+        catch (IOException e) {
+            throw new DataException("failed to open state_path " + directory, e);
+        }
+    }
+
+    /**
+     * @return true if the key was committed by an earlier run
+     */
+    boolean contains(byte[] key, int length)
+    {
+        long hash = Murmur3.hash64(key, length);
+        long hash2 = Murmur3.fmix64(hash);
+        for (Segment segment : segments) {
+            if (segment.contains(hash, hash2, key, length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return where a task records the keys first seen in this run by its records
+     */
+    synchronized TaskKeys openTaskKeys()
+    {
+        TaskKeys keys = new TaskKeys(directory.resolve(String.format("pending-%d.tmp", nextTaskKeysNumber++)));
+        openTaskKeys.add(keys);
+        return keys;
+    }
+
+    /**
+     * Hands the keys of a task that finished emitting its records to the next checkpoint or commit.
+     */
+    synchronized void finishTask(TaskKeys keys)
+    {
+        try {
+            keys.closeWriter();
+        }
+        catch (IOException e) {
+            throw new DataException("failed to write state keys to " + keys.path, e);
+        }
+        openTaskKeys.remove(keys);
+        if (keys.count > 0) {
+            finishedTaskKeys.add(keys);
+        }
+        else {
+            keys.delete();
+        }
+    }
+
+    /**
+     * Drops the keys of a task that did not finish.
+     */
+    synchronized void discardTask(TaskKeys keys)
+    {
+        if (openTaskKeys.remove(keys)) {
+            keys.delete();
+        }
+    }
+
+    /**
+     * @return true if the interval passed since the last checkpoint, or since the store was opened
+     */
+    boolean isCheckpointDue(long intervalNanos)
+    {
+        return System.nanoTime() - lastCheckpointNanos >= intervalNanos;
+    }
+
+    /**
+     * Persists the keys of the tasks finished since the last checkpoint as a checkpoint file.
+     */
+    synchronized void checkpoint()
+    {
+        lastCheckpointNanos = System.nanoTime();
+        if (finishedTaskKeys.isEmpty()) {
+            return;
+        }
+        try {
+            Path checkpointPath = directory.resolve(String.format("checkpoint-%08d.dat", nextSegmentNumber));
+            long keys = persistFinishedTaskKeys(checkpointPath);
+            checkpoints.add(checkpointPath);
+            logger.info("checkpointed {} new keys to {}", keys, checkpointPath);
+        }
+        catch (IOException e) {
+            throw new DataException("failed to checkpoint state to " + directory, e);
+        }
+    }
+
+    /**
+     * Persists the keys appended in this run as a new segment, and turns the checkpoints into segments.
+     */
+    synchronized void commit()
+    {
+        try {
+            for (Path checkpoint : checkpoints) {
+                Path segmentPath = directory.resolve(checkpoint.getFileName().toString().replace("checkpoint-", "segment-"));
+                Files.move(checkpoint, segmentPath, StandardCopyOption.ATOMIC_MOVE);
+            }
+            checkpoints.clear();
+        }
+        catch (IOException e) {
+            throw new DataException("failed to commit state to " + directory, e);
+        }
+        if (finishedTaskKeys.isEmpty()) {
+            return;
+        }
+        try {
+            Path segmentPath = directory.resolve(String.format("segment-%08d.dat", nextSegmentNumber));
+            long keys = persistFinishedTaskKeys(segmentPath);
+            segments.add(new Segment(segmentPath));
+            logger.info("committed {} new keys to {}", keys, segmentPath);
+            compactIfNeeded();
+        }
+        catch (IOException e) {
+            throw new DataException("failed to commit state to " + directory, e);
+        }
+    }
+
+    // merges the committed segments into one when there are too many of them
+    private void compactIfNeeded()
+            throws IOException
+    {
+        // the checkpoints committed by this run are not mapped, so the directory is listed again
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "segment-*.dat")) {
+            for (Path path : stream) {
+                if (SEGMENT_NAME.matcher(path.getFileName().toString()).matches()) {
+                    paths.add(path);
+                }
+            }
+        }
+        if (paths.size() <= MAX_SEGMENTS) {
+            return;
+        }
+        Path mergedPath = directory.resolve(String.format("segment-%08d.dat", nextSegmentNumber));
+        List<Segment> sources = new ArrayList<>();
+        long keys;
+        try {
+            for (Path path : paths) {
+                sources.add(new Segment(path));
+            }
+            Path temporaryPath = directory.resolve(mergedPath.getFileName() + ".tmp");
+            keys = mergeSegments(sources, temporaryPath);
+            Files.move(temporaryPath, mergedPath, StandardCopyOption.ATOMIC_MOVE);
+            nextSegmentNumber++;
+        }
+        finally {
+            for (Segment source : sources) {
+                source.close();
+            }
+        }
+        // a crash before the merged segments are deleted leaves their keys twice, which lookups do not mind
+        for (Segment segment : segments) {
+            segment.close();
+        }
+        segments.clear();
+        for (Path path : paths) {
+            Files.delete(path);
+        }
+        segments.add(new Segment(mergedPath));
+        logger.info("merged {} segments of {} keys into {}", paths.size(), keys, mergedPath);
+    }
+
+    // writes the keys of finished tasks as a segment file and deletes their pending files
+    private long persistFinishedTaskKeys(Path segmentPath)
+            throws IOException
+    {
+        long keys = 0;
+        for (TaskKeys taskKeys : finishedTaskKeys) {
+            keys += taskKeys.count;
+        }
+        Path temporaryPath = directory.resolve(segmentPath.getFileName() + ".tmp");
+        writeSegment(finishedTaskKeys, keys, temporaryPath);
+        Files.move(temporaryPath, segmentPath, StandardCopyOption.ATOMIC_MOVE);
+        for (TaskKeys taskKeys : finishedTaskKeys) {
+            taskKeys.delete();
+        }
+        finishedTaskKeys.clear();
+        nextSegmentNumber++;
+        return keys;
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            for (TaskKeys keys : openTaskKeys) {
+                keys.delete();
+            }
+            for (TaskKeys keys : finishedTaskKeys) {
+                keys.delete();
+            }
+            openTaskKeys.clear();
+            finishedTaskKeys.clear();
+        }
+        finally {
+            closeSegmentsAndLock();
+        }
+    }
+
+    private void closeSegmentsAndLock()
+    {
+        for (Segment segment : segments) {
+            try {
+                segment.close();
+            }
+            catch (IOException e) {
+                logger.warn("failed to close a state segment in {}", directory, e);
+            }
+        }
+        segments.clear();
+        try {
+            lock.release();
+            lockChannel.close();
+        }
+        catch (IOException e) {
+            logger.warn("failed to close state_path {}", directory, e);
+        }
+    }
+
+    private static void writeSegment(List<TaskKeys> sources, long keyCount, Path segmentPath)
+            throws IOException
+    {
+        if (keyCount > Integer.MAX_VALUE - 8) {
+            throw new DataException("too many new keys for one state segment: " + keyCount);
+        }
+        int count = (int) keyCount;
+        long[] hashes = new long[count];
+        long[] offsets = new long[count];
+        BloomFilter bloomFilter = new BloomFilter(count, BLOOM_FPP);
+
+        long dataLength = 0;
+        int i = 0;
+        byte[] key = new byte[64];
+        for (TaskKeys source : sources) {
+            try (DataInputStream in = openInput(source.path)) {
+                for (long j = 0; j < source.count; j++, i++) {
+                    int length = in.readInt();
+                    if (key.length < length) {
+                        key = new byte[Math.max(key.length * 2, length)];
+                    }
+                    in.readFully(key, 0, length);
+                    hashes[i] = Murmur3.hash64(key, length);
+                    offsets[i] = dataLength;
+                    bloomFilter.put(hashes[i], Murmur3.fmix64(hashes[i]));
+                    dataLength += 4 + length;
+                }
+            }
+        }
+        sort(hashes, offsets, 0, count - 1);
+
+        try (OutputStream file = Files.newOutputStream(segmentPath);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 64 << 10))) {
+            long[] words = bloomFilter.getWords();
+            out.writeInt(MAGIC);
+            out.writeInt(bloomFilter.getHashCount());
+            out.writeLong(count);
+            out.writeLong(words.length);
+            out.writeLong(dataLength);
+            for (long word : words) {
+                out.writeLong(word);
+            }
+            for (int j = 0; j < count; j++) {
+                out.writeLong(hashes[j]);
+                out.writeLong(offsets[j]);
+            }
+            // the keys of the sources in order, as the offsets were counted
+            byte[] buffer = new byte[64 << 10];
+            for (TaskKeys source : sources) {
+                try (InputStream in = Files.newInputStream(source.path)) {
+                    int n;
+                    while ((n = in.read(buffer)) >= 0) {
+                        out.write(buffer, 0, n);
+                    }
+                }
+            }
+        }
+        try (FileChannel channel = FileChannel.open(segmentPath, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    private static long mergeSegments(List<Segment> sources, Path segmentPath)
+            throws IOException
+    {
+        long count = 0;
+        long dataLength = 0;
+        for (Segment source : sources) {
+            count += source.keyCount;
+            dataLength += source.dataLength;
+        }
+        BloomFilter bloomFilter = new BloomFilter(count, BLOOM_FPP);
+        for (Segment source : sources) {
+            for (long i = 0; i < source.keyCount; i++) {
+                long hash = source.hashAt(i);
+                bloomFilter.put(hash, Murmur3.fmix64(hash));
+            }
+        }
+
+        try (OutputStream file = Files.newOutputStream(segmentPath);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 64 << 10))) {
+            long[] words = bloomFilter.getWords();
+            out.writeInt(MAGIC);
+            out.writeInt(bloomFilter.getHashCount());
+            out.writeLong(count);
+            out.writeLong(words.length);
+            out.writeLong(dataLength);
+            for (long word : words) {
+                out.writeLong(word);
+            }
+            // merges the sorted indexes; the data of the sources follows in order, so offsets move by the data before
+            long[] positions = new long[sources.size()];
+            long[] dataBases = new long[sources.size()];
+            for (int s = 1; s < sources.size(); s++) {
+                dataBases[s] = dataBases[s - 1] + sources.get(s - 1).dataLength;
+            }
+            for (long j = 0; j < count; j++) {
+                int next = -1;
+                long nextHash = 0;
+                for (int s = 0; s < sources.size(); s++) {
+                    if (positions[s] < sources.get(s).keyCount) {
+                        long hash = sources.get(s).hashAt(positions[s]);
+                        if (next < 0 || hash < nextHash) {
+                            next = s;
+                            nextHash = hash;
+                        }
+                    }
+                }
+                out.writeLong(nextHash);
+                out.writeLong(dataBases[next] + sources.get(next).offsetAt(positions[next]));
+                positions[next]++;
+            }
+            byte[] buffer = new byte[64 << 10];
+            for (Segment source : sources) {
+                source.copyData(out, buffer);
+            }
+        }
+        try (FileChannel channel = FileChannel.open(segmentPath, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        return count;
+    }
+
+    private static DataInputStream openInput(Path path)
+            throws IOException
+    {
+        return new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 64 << 10));
+    }
+
+    // sorts both arrays by hashes
+    private static void sort(long[] hashes, long[] offsets, int low, int high)
+    {
+        while (low < high) {
+            if (high - low < 16) {
+                for (int i = low + 1; i <= high; i++) {
+                    for (int j = i; j > low && hashes[j - 1] > hashes[j]; j--) {
+                        swap(hashes, offsets, j - 1, j);
+                    }
+                }
+                return;
+            }
+            long pivot = hashes[(low + high) >>> 1];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (hashes[i] < pivot) {
+                    i++;
+                }
+                while (hashes[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(hashes, offsets, i++, j--);
+                }
+            }
+            // recurse into the smaller half to bound the stack depth
+            if (j - low < high - i) {
+                sort(hashes, offsets, low, j);
+                low = i;
+            }
+            else {
+                sort(hashes, offsets, i, high);
+                high = j;
+            }
+        }
+    }
+
+    private static void swap(long[] hashes, long[] offsets, int i, int j)
+    {
+        long hash = hashes[i];
+        hashes[i] = hashes[j];
+        hashes[j] = hash;
+        long offset = offsets[i];
+        offsets[i] = offsets[j];
+        offsets[j] = offset;
+    }
+
+    /**
+     * The keys first seen in this run by the records of a task, appended to a pending file.
+     * Only the task appends to it, so appending is not synchronized.
+     */
+    static final class TaskKeys
+    {
+        private final Path path;
+        private DataOutputStream writer;
+        private long count;
+
+        private TaskKeys(Path path)
+        {
+            this.path = path;
+        }
+
+        void append(byte[] key, int length)
+        {
+            try {
+                if (writer == null) {
+                    writer = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 64 << 10));
+                }
+                writer.writeInt(length);
+                writer.write(key, 0, length);
+                count++;
+            }
+            catch (IOException e) {
+                throw new DataException("failed to write state keys to " + path, e);
+            }
+        }
+
+        private void closeWriter()
+                throws IOException
+        {
+            if (writer != null) {
+                writer.close();
+                writer = null;
+            }
+        }
+
+        private void delete()
+        {
+            try {
+                closeWriter();
+                Files.deleteIfExists(path);
+            }
+            catch (IOException e) {
+                logger.warn("failed to delete {}", path, e);
+            }
+        }
+    }
+
+    private static final class Segment
+    {
+        private final FileChannel channel;
+        private final MappedFile file;
+        private final BloomFilter bloomFilter;
+        private final long keyCount;
+        private final long indexStart;
+        private final long dataStart;
+        private final long dataLength;
+
+        Segment(Path path)
+                throws IOException
+        {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                if (channel.size() < HEADER_SIZE) {
+                    throw new DataException("truncated state segment: " + path);
+                }
+                this.file = new MappedFile(channel);
+                if (file.getInt(0) != MAGIC) {
+                    throw new DataException("not a state segment: " + path);
+                }
+                int hashCount = file.getInt(4);
+                this.keyCount = file.getLong(8);
+                long bloomWords = file.getLong(16);
+                this.indexStart = HEADER_SIZE + bloomWords * 8;
+                this.dataStart = indexStart + keyCount * 16;
+                this.dataLength = file.getLong(24);
+                if (bloomWords < 0 || keyCount < 0 || dataStart + dataLength != channel.size()) {
+                    throw new DataException("truncated state segment: " + path);
+                }
+                long[] words = new long[(int) bloomWords];
+                for (int i = 0; i < words.length; i++) {
+                    words[i] = file.getLong(HEADER_SIZE + i * 8L);
+                }
+                this.bloomFilter = new BloomFilter(words, hashCount);
+            }
+            catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        boolean contains(long hash, long hash2, byte[] key, int length)
+        {
+            if (!bloomFilter.mightContain(hash, hash2)) {
+                return false;
+            }
+            // leftmost entry with the hash; different keys may share it
+            long low = 0;
+            long high = keyCount;
+            while (low < high) {
+                long middle = (low + high) >>> 1;
+                if (file.getLong(indexStart + middle * 16) < hash) {
+                    low = middle + 1;
+                }
+                else {
+                    high = middle;
+                }
+            }
+            for (long i = low; i < keyCount && file.getLong(indexStart + i * 16) == hash; i++) {
+                if (keyEquals(dataStart + file.getLong(indexStart + i * 16 + 8), key, length)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        long hashAt(long index)
+        {
+            return file.getLong(indexStart + index * 16);
+        }
+
+        long offsetAt(long index)
+        {
+            return file.getLong(indexStart + index * 16 + 8);
+        }
+
+        void copyData(OutputStream out, byte[] buffer)
+                throws IOException
+        {
+            long end = dataStart + dataLength;
+            for (long position = dataStart; position < end; ) {
+                int n = channel.read(ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, end - position)), position);
+                if (n < 0) {
+                    throw new EOFException();
+                }
+                out.write(buffer, 0, n);
+                position += n;
+            }
+        }
+
+        private boolean keyEquals(long position, byte[] key, int length)
+        {
+            if (file.getInt(position) != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (file.get(position + 4 + i) != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void close()
+                throws IOException
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * Maps a whole file as chunks of at most 1GB. Each chunk overlaps the next one
+     * by 8 bytes, so an int or a long never straddles two chunks.
+     */
+    private static final class MappedFile
+    {
+        private static final int CHUNK_SHIFT = 30;
+        private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+        private final MappedByteBuffer[] chunks;
+
+        MappedFile(FileChannel channel)
+                throws IOException
+        {
+            long size = channel.size();
+            int count = (int) ((size + CHUNK_MASK) >>> CHUNK_SHIFT);
+            this.chunks = new MappedByteBuffer[Math.max(count, 1)];
+            for (int i = 0; i < chunks.length; i++) {
+                long start = (long) i << CHUNK_SHIFT;
+                long length = Math.min(size - start, (1L << CHUNK_SHIFT) + 8);
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.max(length, 0));
+            }
+        }
+
+        byte get(long position)
+        {
+            return chunks[(int) (position >>> CHUNK_SHIFT)].get((int) (position & CHUNK_MASK));
+        }
+
+        int getInt(long position)
+        {
+            return chunks[(int) (position >>> CHUNK_SHIFT)].getInt((int) (position & CHUNK_MASK));
+        }
+
+        long getLong(long position)
+        {
+            return chunks[(int) (position >>> CHUNK_SHIFT)].getLong((int) (position & CHUNK_MASK));
+        }
+    }
+}
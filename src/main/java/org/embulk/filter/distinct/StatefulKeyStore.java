@@ -0,0 +1,66 @@
+package org.embulk.filter.distinct;
+
+/**
+ * Checks keys against the keys committed by earlier runs before the keys of this run.
+ * The keys first seen in this run are recorded to the state by the task emitting their
+ * records, see {@link StateStore.TaskKeys}.
+ */
+class StatefulKeyStore
+        implements KeyStore
+{
+    private final KeyStore current;
+    private final StateStore state;
+
+    StatefulKeyStore(KeyStore current, StateStore state)
+    {
+        this.current = current;
+        this.state = state;
+    }
+
+    @Override
+    public boolean add(byte[] key, int length)
+    {
+        return !state.contains(key, length) && current.add(key, length);
+    }
+
+    @Override
+    public void addAbsent(byte[] key, int length)
+    {
+        current.addAbsent(key, length);
+    }
+
+    @Override
+    public void addAll(KeyBatch batch, boolean[] added)
+    {
+        KeyBatch.addEach(this, batch, added);
+    }
+
+    @Override
+    public boolean contains(byte[] key, int length)
+    {
+        return state.contains(key, length) || current.contains(key, length);
+    }
+
+    @Override
+    public long size()
+    {
+        return current.size();
+    }
+
+    @Override
+    public long estimatedBytes()
+    {
+        return current.estimatedBytes();
+    }
+
+    @Override
+    public long rehashes()
+    {
+        return current.rehashes();
+    }
+
+    StateStore getState()
+    {
+        return state;
+    }
+}
@@ -0,0 +1,34 @@
+package org.embulk.filter.distinct;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+import org.embulk.config.ConfigException;
+
+import java.util.Locale;
+
+/**
+ * Where exact keys are kept: in Java heap objects, or in direct memory arenas.
+ */
+public enum StoreType
+{
+    HEAP,
+    OFF_HEAP;
+
+    @JsonValue
+    @Override
+    public String toString()
+    {
+        return name().toLowerCase(Locale.ENGLISH);
+    }
+
+    @JsonCreator
+    public static StoreType fromString(String value)
+    {
+        for (StoreType type : values()) {
+            if (type.toString().equals(value)) {
+                return type;
+            }
+        }
+        throw new ConfigException(String.format("Unknown store '%s'. Supported store are heap, off_heap", value));
+    }
+}
@@ -0,0 +1,106 @@
+package org.embulk.filter.distinct;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+import com.google.common.math.LongMath;
+import org.embulk.config.ConfigException;
+
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * How long a key is remembered: a duration of the window column, e.g. {@code 10m},
+ * or a number of records, e.g. {@code 100000 records}.
+ */
+public class Window
+{
+    private static final Pattern PATTERN = Pattern.compile("\\s*(\\d+)\\s*(ms|s|m|h|d|records?)\\s*");
+
+    private final boolean records;
+    private final long length;
+    private final String value;
+
+    private Window(boolean records, long length, String value)
+    {
+        this.records = records;
+        this.length = length;
+        this.value = value;
+    }
+
+    @JsonCreator
+    public static Window fromString(String value)
+    {
+        Matcher matcher = PATTERN.matcher(value.toLowerCase(Locale.ENGLISH));
+        if (!matcher.matches()) {
+            throw new ConfigException(String.format(
+                    "Invalid window '%s'. Use a duration with a unit of ms, s, m, h or d, or a number of records, e.g. '100000 records'", value));
+        }
+        long number;
+        try {
+            number = Long.parseLong(matcher.group(1));
+        }
+        catch (NumberFormatException e) {
+            throw tooLarge(value);
+        }
+        String unit = matcher.group(2);
+        if (number <= 0) {
+            throw new ConfigException(String.format("window must be positive: '%s'", value));
+        }
+        if (unit.startsWith("record")) {
+            return new Window(true, number, value.trim());
+        }
+        long millis;
+        switch (unit) {
+            case "ms":
+                millis = 1L;
+                break;
+            case "s":
+                millis = 1000L;
+                break;
+            case "m":
+                millis = 60 * 1000L;
+                break;
+            case "h":
+                millis = 60 * 60 * 1000L;
+                break;
+            default:
+                millis = 24 * 60 * 60 * 1000L;
+                break;
+        }
+        try {
+            return new Window(false, LongMath.checkedMultiply(number, millis), value.trim());
+        }
+        catch (ArithmeticException e) {
+            throw tooLarge(value);
+        }
+    }
+
+    private static ConfigException tooLarge(String value)
+    {
+        return new ConfigException(String.format("window '%s' is too large", value));
+    }
+
+    /**
+     * @return true if the window is a number of records, false if it is a duration
+     */
+    public boolean isRecords()
+    {
+        return records;
+    }
+
+    /**
+     * @return the number of records, or the duration in milliseconds
+     */
+    public long getLength()
+    {
+        return length;
+    }
+
+    @JsonValue
+    @Override
+    public String toString()
+    {
+        return value;
+    }
+}
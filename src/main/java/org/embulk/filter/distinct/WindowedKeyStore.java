@@ -0,0 +1,250 @@
+package org.embulk.filter.distinct;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers keys only for a window of time or records, so that memory is bounded
+ * by the number of distinct keys in a window rather than in the whole input.
+ *
+ * The window is cut into buckets of {@code window / generations}. Every shard keeps
+ * a ring of generations, the newest one for the current bucket and one for each of
+ * the previous buckets; a key is added to the newest generation unless an older one
+ * holds it. When the window moves to a later bucket, a shard drops its oldest
+ * generations as a whole the next time it is used, so eviction costs nothing per key.
+ * Keys are remembered for at least the window and at most one bucket longer.
+ *
+ * The window moves with the latest position seen by any task. A record older than the
+ * current bucket is checked against the live generations and added to the newest one.
+ */
+class WindowedKeyStore
+        implements KeyStore
+{
+    /**
+     * Creates the store of a generation of a shard.
+     */
+    interface GenerationFactory
+    {
+        KeyStore create();
+    }
+
+    private final long span;
+    private final GenerationFactory factory;
+    private final Shard[] shards;
+    private final AtomicLong records = new AtomicLong();
+    private volatile long bucket = Long.MIN_VALUE;
+
+    /**
+     * @param length the window in milliseconds or records
+     * @param generations the number of buckets the window is cut into
+     */
+    WindowedKeyStore(long length, int generations, int shardCount, GenerationFactory factory)
+    {
+        this.span = Math.max(1, length / generations + (length % generations == 0 ? 0 : 1));
+        this.factory = factory;
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(generations + 1);
+        }
+    }
+
+    /**
+     * Moves the window to include a time in milliseconds.
+     */
+    void advance(long position)
+    {
+        long target = floorDiv(position, span);
+        if (target > bucket) {
+            synchronized (this) {
+                if (target > bucket) {
+                    bucket = target;
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves a window of records past the records about to be read.
+     */
+    void advanceRecords(int count)
+    {
+        advance(records.getAndAdd(count));
+    }
+
+    @Override
+    public boolean add(byte[] key, int length)
+    {
+        Shard shard = shardOf(key, length);
+        synchronized (shard) {
+            shard.rotateTo(bucket);
+            if (shard.containsOld(key, length)) {
+                return false;
+            }
+            return shard.newest().add(key, length);
+        }
+    }
+
+    @Override
+    public void addAbsent(byte[] key, int length)
+    {
+        add(key, length);
+    }
+
+    @Override
+    public void addAll(KeyBatch batch, boolean[] added)
+    {
+        KeyBatch.addEach(this, batch, added);
+    }
+
+    @Override
+    public boolean contains(byte[] key, int length)
+    {
+        Shard shard = shardOf(key, length);
+        synchronized (shard) {
+            shard.rotateTo(bucket);
+            KeyStore newest = shard.generations[shard.head];
+            return shard.containsOld(key, length) || (newest != null && newest.contains(key, length));
+        }
+    }
+
+    @Override
+    public long size()
+    {
+        long size = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                for (KeyStore generation : shard.generations) {
+                    if (generation != null) {
+                        size += generation.size();
+                    }
+                }
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public long estimatedBytes()
+    {
+        long bytes = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                for (KeyStore generation : shard.generations) {
+                    if (generation != null) {
+                        bytes += generation.estimatedBytes();
+                    }
+                }
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public long rehashes()
+    {
+        long rehashes = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                rehashes += shard.droppedRehashes;
+                for (KeyStore generation : shard.generations) {
+                    if (generation != null) {
+                        rehashes += generation.rehashes();
+                    }
+                }
+            }
+        }
+        return rehashes;
+    }
+
+    /**
+     * @return the number of keys dropped with their generations so far
+     */
+    long evictedKeys()
+    {
+        long evicted = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                evicted += shard.evicted;
+            }
+        }
+        return evicted;
+    }
+
+    private Shard shardOf(byte[] key, int length)
+    {
+        return shards[KeyStores.shardOf(Murmur3.hash64(key, length), shards.length)];
+    }
+
+    private static long floorDiv(long x, long y)
+    {
+        long q = x / y;
+        return (x % y != 0 && x < 0) ? q - 1 : q;
+    }
+
+    private final class Shard
+    {
+        // a ring whose head is the newest generation; null until a key is added
+        private final KeyStore[] generations;
+        private int head;
+        private long bucket = Long.MIN_VALUE;
+        private long evicted;
+        private long droppedRehashes;
+
+        Shard(int count)
+        {
+            this.generations = new KeyStore[count];
+        }
+
+        void rotateTo(long current)
+        {
+            if (current <= bucket) {
+                return;
+            }
+            if (bucket == Long.MIN_VALUE) {
+                bucket = current;
+                return;
+            }
+            if (current - bucket >= generations.length) {
+                for (KeyStore generation : generations) {
+                    drop(generation);
+                }
+                Arrays.fill(generations, null);
+            }
+            else {
+                for (long i = bucket; i < current; i++) {
+                    head = (head + generations.length - 1) % generations.length;
+                    drop(generations[head]);
+                    generations[head] = null;
+                }
+            }
+            bucket = current;
+        }
+
+        boolean containsOld(byte[] key, int length)
+        {
+            for (int i = 1; i < generations.length; i++) {
+                KeyStore generation = generations[(head + i) % generations.length];
+                if (generation != null && generation.contains(key, length)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        KeyStore newest()
+        {
+            if (generations[head] == null) {
+                generations[head] = factory.create();
+            }
+            return generations[head];
+        }
+
+        private void drop(KeyStore generation)
+        {
+            if (generation != null) {
+                evicted += generation.size();
+                droppedRehashes += generation.rehashes();
+            }
+        }
+    }
+}
@@ -2,11 +2,14 @@ package org.embulk.filter.distinct;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigLoader;
 import org.embulk.config.ConfigSource;
 import org.embulk.config.TaskSource;
 import org.embulk.spi.Column;
+import org.embulk.spi.DataException;
 import org.embulk.spi.Page;
 import org.embulk.spi.PageOutput;
 import org.embulk.spi.PageTestUtils;
@@ -21,15 +24,27 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
-
-import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.embulk.filter.distinct.DistinctFilterPlugin.PluginTask;
 import static org.embulk.spi.FilterPlugin.Control;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class TestDistinctFilterPlugin
 {
@@ -39,23 +54,13 @@ public class TestDistinctFilterPlugin
     @Rule
     public ExpectedException exception = ExpectedException.none();
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     private static JsonParser jsonParser = new JsonParser();
     private Schema schema;
     private DistinctFilterPlugin plugin;
 
-    // http://stackoverflow.com/questions/3301635/change-private-static-final-field-using-java-reflection
-    private static void setFinalStaticVariable(Field field, Object newValue)
-            throws IllegalAccessException, NoSuchFieldException
-    {
-        field.setAccessible(true);
-
-        Field modifiersField = Field.class.getDeclaredField("modifiers");
-        modifiersField.setAccessible(true);
-        modifiersField.setInt(field, field.getModifiers() & ~Modifier.FINAL);
-
-        field.set(null, newValue);
-    }
-
     private Schema schema(Object... nameAndTypes)
     {
         Schema.Builder builder = Schema.builder();
@@ -71,19 +76,84 @@ public class TestDistinctFilterPlugin
         return loader.fromYamlString(yaml);
     }
 
-    @Before
-    public void setupDefault()
+    private List<Object[]> filter(String yaml, final Object... values)
     {
-        schema = schema("_c0", Types.STRING, "_c1", Types.STRING);
-        plugin = new DistinctFilterPlugin();
+        final List<Object[]> records = Lists.newArrayList();
+        plugin.transaction(loadConfigFromYaml(yaml), schema, new Control() {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema)
+            {
+                MockPageOutput output = new MockPageOutput();
+
+                try (PageOutput pageOutput = plugin.open(taskSource, schema, outputSchema, output)) {
+                    for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, values)) {
+                        pageOutput.add(page);
+                    }
+                    pageOutput.finish();
+                }
+
+                records.addAll(Pages.toObjects(outputSchema, output.pages));
+            }
+        });
+        return records;
+    }
+
+    private static Map<Object, Object> toMap(List<Object[]> records)
+    {
+        Map<Object, Object> map = new HashMap<>();
+        for (Object[] record : records) {
+            assertNull(map.put(record[0], record[1]));
+        }
+        return map;
+    }
+
+    // a key service of another place, as a distributed executor would use
+    public static class CountingKeyService
+            implements KeyService
+    {
+        static final AtomicInteger calls = new AtomicInteger();
+        static final AtomicInteger releases = new AtomicInteger();
+
+        private final LocalKeyService local;
+
+        public CountingKeyService(String transactionId, int partitions, Map<String, String> options)
+        {
+            assertEquals("b", options.get("a"));
+            this.local = new LocalKeyService(transactionId, partitions, options);
+        }
+
+        @Override
+        public Map<Integer, boolean[]> addAll(Map<Integer, List<byte[]>> keys)
+        {
+            calls.incrementAndGet();
+            return local.addAll(keys);
+        }
+
+        @Override
+        public Map<Integer, boolean[]> containsAll(Map<Integer, List<byte[]>> keys)
+        {
+            calls.incrementAndGet();
+            return local.containsAll(keys);
+        }
+
+        @Override
+        public void release()
+        {
+            releases.incrementAndGet();
+            local.release();
+        }
+
+        @Override
+        public void close()
+        {
+        }
     }
 
     @Before
-    public void resetStatic()
-            throws IllegalAccessException, NoSuchFieldException
+    public void setupDefault()
     {
-        Field set = DistinctFilterPageOutput.class.getDeclaredField("set");
-        setFinalStaticVariable(set, Sets.<List<Object>>newConcurrentHashSet());
+        schema = schema("_c0", Types.STRING, "_c1", Types.STRING);
+        plugin = new DistinctFilterPlugin();
     }
 
     @Test
@@ -97,6 +167,35 @@ public class TestDistinctFilterPlugin
         PluginTask task = config.loadConfig(PluginTask.class);
 
         assertEquals(Lists.newArrayList("_c0", "_c1"), task.getDistinctColumnNames());
+        assertEquals(KeyMode.EXACT, task.getKeyMode());
+    }
+
+    @Test
+    public void testConfigureKeyMode()
+    {
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0, _c1]\n" +
+                "key_mode: hash128\n";
+
+        ConfigSource config = loadConfigFromYaml(yaml);
+        PluginTask task = config.loadConfig(PluginTask.class);
+
+        assertEquals(KeyMode.HASH128, task.getKeyMode());
+    }
+
+    @Test
+    public void testConfigureUnknownKeyMode()
+    {
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0, _c1]\n" +
+                "key_mode: crc32\n";
+
+        exception.expect(ConfigException.class);
+        exception.expectMessage("Unknown key_mode 'crc32'");
+
+        loadConfigFromYaml(yaml).loadConfig(PluginTask.class);
     }
 
     @Test
@@ -487,4 +586,1629 @@ public class TestDistinctFilterPlugin
             }
         });
     }
+
+    @Test
+    public void testDistinctBySinglePrimitiveColumnKeepsZeroAndNullApart()
+    {
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n";
+
+        schema = schema("_c0", Types.LONG, "_c1", Types.STRING);
+        assertEquals(3, filter(yaml, 0L, "a", null, "b", 0L, "c", -1L, "d", null, "e").size());
+
+        schema = schema("_c0", Types.DOUBLE, "_c1", Types.STRING);
+        assertEquals(3, filter(yaml, 0.0, "a", -0.0, "b", null, "c", 0.0, "d").size());
+
+        schema = schema("_c0", Types.TIMESTAMP, "_c1", Types.STRING);
+        assertEquals(4, filter(yaml,
+                Timestamp.ofEpochSecond(0), "a",
+                null, "b",
+                Timestamp.ofEpochSecond(0, 1), "c",
+                Timestamp.ofEpochSecond(1, 0), "d",
+                Timestamp.ofEpochSecond(0), "e").size());
+    }
+
+    @Test
+    public void testTransactionsDoNotShareKeys()
+    {
+        Object[] values = {"a", "1", "b", "2", "a", "3", "c", "4", "b", "5"};
+        for (String options : new String[] {"async: false", "async: true"}) {
+            String yaml = "" +
+                    "type: distinct\n" +
+                    "columns: [_c0]\n" +
+                    options + "\n";
+
+            // a later transaction in the same JVM starts with no keys
+            assertEquals(3, filter(yaml, values).size());
+            assertEquals(3, filter(yaml, values).size());
+        }
+
+        // a single primitive column is kept in another store
+        schema = schema("_c0", Types.LONG, "_c1", Types.STRING);
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n";
+        assertEquals(2, filter(yaml, 1L, "a", 2L, "b", 1L, "c").size());
+        assertEquals(2, filter(yaml, 1L, "a", 2L, "b", 1L, "c").size());
+    }
+
+    @Test
+    public void testForwardPageWithoutDuplicates()
+    {
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n";
+
+        plugin.transaction(loadConfigFromYaml(yaml), schema, new Control() {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema)
+            {
+                MockPageOutput output = new MockPageOutput();
+                List<Page> pages = PageTestUtils.buildPage(runtime.getBufferAllocator(), schema,
+                        "a", "1", "a", "2", "b", "3", "c", "4",
+                        "d", "5", "e", "6", "f", "7", "g", "8",
+                        "h", "9", "a", "10");
+                assertEquals(3, pages.size());
+
+                try (PageOutput pageOutput = plugin.open(taskSource, schema, outputSchema, output)) {
+                    for (Page page : pages) {
+                        pageOutput.add(page);
+                    }
+                    pageOutput.finish();
+                }
+
+                // the second page has no duplicates and is forwarded as it is
+                assertTrue(output.pages.contains(pages.get(1)));
+                List<Object[]> records = Pages.toObjects(outputSchema, output.pages);
+                assertEquals(8, records.size());
+                String[] expected = {"a", "b", "c", "d", "e", "f", "g", "h"};
+                for (int i = 0; i < expected.length; i++) {
+                    assertEquals(expected[i], records.get(i)[0]);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testDistinctByJsonColumnIgnoresKeyOrder()
+    {
+        schema = schema("_c0", Types.JSON, "_c1", Types.STRING);
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n";
+
+        final String json1 = "{\"a\":1,\"b\":[\"b\",{\"c\":1.5,\"d\":null}]}";
+        final String json2 = "{\"b\":[\"b\",{\"d\":null,\"c\":1.5}],\"a\":1}";
+        final String json3 = "{\"a\":1.0,\"b\":[\"b\",{\"c\":1.5,\"d\":null}]}";
+
+        ConfigSource config = loadConfigFromYaml(yaml);
+        plugin.transaction(config, schema, new Control() {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema)
+            {
+                MockPageOutput output = new MockPageOutput();
+
+                try (PageOutput pageOutput = plugin.open(taskSource, schema, outputSchema, output)) {
+                    for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema,
+                            jsonParser.parse(json1), "a", // row: 1
+                            jsonParser.parse(json2), "b", // row: 2
+                            jsonParser.parse(json3), "c"  // row: 3
+                    )
+                            ) {
+                        pageOutput.add(page);
+                    }
+                    pageOutput.finish();
+                }
+
+                List<Object[]> records = Pages.toObjects(outputSchema, output.pages);
+                assertEquals(2, records.size());
+                assertEquals("a", records.get(0)[1]);
+                assertEquals("c", records.get(1)[1]);
+            }
+        });
+    }
+
+    @Test
+    public void testDistinctByJsonPaths()
+    {
+        schema = schema("_c0", Types.JSON, "_c1", Types.STRING);
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0.$.event_id, _c0.$.source]\n";
+
+        List<Object[]> records = filter(yaml,
+                jsonParser.parse("{\"event_id\":1,\"source\":\"web\",\"body\":\"x\"}"), "a",
+                jsonParser.parse("{\"body\":\"y\",\"source\":\"web\",\"event_id\":1}"), "b",
+                jsonParser.parse("{\"event_id\":1,\"source\":\"app\"}"), "c",
+                jsonParser.parse("{\"event_id\":2}"), "d",
+                jsonParser.parse("{\"event_id\":2,\"source\":null}"), "e",
+                jsonParser.parse("[2]"), "f",
+                null, "g");
+
+        // a missing value is null, but a json null is not
+        assertEquals(5, records.size());
+        assertEquals("a", records.get(0)[1]);
+        assertEquals("c", records.get(1)[1]);
+        assertEquals("d", records.get(2)[1]);
+        assertEquals("e", records.get(3)[1]);
+        assertEquals("f", records.get(4)[1]);
+    }
+
+    @Test
+    public void testDistinctByNestedJsonPath()
+    {
+        schema = schema("_c0", Types.JSON, "_c1", Types.STRING);
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: ['_c0.$.event.ids[1]']\n";
+
+        List<Object[]> records = filter(yaml,
+                jsonParser.parse("{\"event\":{\"ids\":[1,{\"a\":2,\"b\":3}]}}"), "a",
+                jsonParser.parse("{\"event\":{\"ids\":[9,{\"b\":3,\"a\":2}]}}"), "b",
+                jsonParser.parse("{\"event\":{\"ids\":[1,2]}}"), "c");
+
+        assertEquals(2, records.size());
+        assertEquals("a", records.get(0)[1]);
+        assertEquals("c", records.get(1)[1]);
+    }
+
+    @Test
+    public void testJsonPathOfNonJsonColumn()
+    {
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0.$.id]\n";
+
+        exception.expect(ConfigException.class);
+        exception.expectMessage("not a json column");
+
+        filter(yaml, "a", "b");
+    }
+
+    @Test
+    public void testDistinctWithKeyTransforms()
+    {
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "key_transforms: {_c0: [trim, lower]}\n";
+
+        List<Object[]> records = filter(yaml, " Foo", "a", "foo\t", "b", "FOO", "c", "f oo", "d", "\u0130", "e", "i", "f");
+
+        // the records are emitted as read
+        assertEquals(3, records.size());
+        assertEquals(" Foo", records.get(0)[0]);
+        assertEquals("f oo", records.get(1)[0]);
+        assertEquals("\u0130", records.get(2)[0]);
+
+        schema = schema("_c0", Types.TIMESTAMP, "_c1", Types.DOUBLE);
+        yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0, _c1]\n" +
+                "key_transforms: {_c0: ['truncate_timestamp(minute)'], _c1: ['round(1)']}\n";
+
+        records = filter(yaml,
+                Timestamp.ofEpochSecond(120, 5), 1.04,
+                Timestamp.ofEpochSecond(179, 999999999), 0.95,
+                Timestamp.ofEpochSecond(180), 1.0,
+                Timestamp.ofEpochSecond(-1), -0.04,
+                Timestamp.ofEpochSecond(-60), 0.04,
+                Timestamp.ofEpochSecond(-61), 0.0);
+
+        assertEquals(4, records.size());
+        assertEquals(Timestamp.ofEpochSecond(120, 5), records.get(0)[0]);
+        assertEquals(Timestamp.ofEpochSecond(180), records.get(1)[0]);
+        assertEquals(Timestamp.ofEpochSecond(-1), records.get(2)[0]);
+        assertEquals(Timestamp.ofEpochSecond(-61), records.get(3)[0]);
+    }
+
+    @Test
+    public void testKeyTransformOfOtherType()
+    {
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "key_transforms: {_c0: ['round(2)']}\n";
+
+        exception.expect(ConfigException.class);
+        exception.expectMessage("round(2) can not transform '_c0'");
+
+        filter(yaml, "a", "b");
+    }
+
+    @Test
+    public void testKeyTransformOfUnknownColumn()
+    {
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "key_transforms: {_c1: [lower]}\n";
+
+        exception.expect(ConfigException.class);
+        exception.expectMessage("'_c1' is not one of columns");
+
+        filter(yaml, "a", "b");
+    }
+
+    @Test
+    public void testDistinctByMultipleColumnsDoesNotMixBoundaries()
+    {
+        schema = schema("_c0", Types.STRING, "_c1", Types.STRING, "_c2", Types.LONG);
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0, _c1, _c2]\n";
+
+        ConfigSource config = loadConfigFromYaml(yaml);
+        plugin.transaction(config, schema, new Control() {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema)
+            {
+                MockPageOutput output = new MockPageOutput();
+
+                try (PageOutput pageOutput = plugin.open(taskSource, schema, outputSchema, output)) {
+                    for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema,
+                            "a", "bc", 1L,        // row: 1
+                            "ab", "c", 1L,        // row: 2
+                            "", "abc", 1L,        // row: 3
+                            null, "abc", 1L,      // row: 4
+                            "\u00e9\ud83d\ude00", "", -1L, // row: 5
+                            "\u00e9\ud83d\ude00", "", -1L, // row: 6
+                            "a", "bc", 1L         // row: 7
+                    )
+                            ) {
+                        pageOutput.add(page);
+                    }
+                    pageOutput.finish();
+                }
+
+                List<Object[]> records = Pages.toObjects(outputSchema, output.pages);
+                assertEquals(5, records.size());
+                assertEquals("\u00e9\ud83d\ude00", records.get(4)[0]);
+                assertEquals(-1L, records.get(4)[2]);
+            }
+        });
+    }
+
+    @Test
+    public void testDistinctByHash64KeyMode()
+    {
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0, _c1]\n" +
+                "key_mode: hash64\n";
+
+        List<Object[]> records = filter(yaml,
+                "a", "a",  // row: 1
+                "a", "a",  // row: 2
+                "a", "b",  // row: 3
+                null, "a", // row: 4
+                null, "a", // row: 5
+                "b", null  // row: 6
+        );
+
+        assertEquals(4, records.size());
+        assertEquals("b", records.get(1)[1]);
+        assertNull(records.get(2)[0]);
+        assertNull(records.get(3)[1]);
+    }
+
+    @Test
+    public void testDistinctByHash128KeyMode()
+    {
+        schema = schema("_c0", Types.LONG, "_c1", Types.STRING);
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "key_mode: hash128\n";
+
+        Object[] values = new Object[2000 * 2 * 2];
+        for (int i = 0; i < 2000 * 2; i++) {
+            values[i * 2] = (long) (i % 2000);
+            values[i * 2 + 1] = String.valueOf(i);
+        }
+        List<Object[]> records = filter(yaml, values);
+
+        assertEquals(2000, records.size());
+        for (int i = 0; i < 2000; i++) {
+            assertEquals((long) i, records.get(i)[0]);
+        }
+    }
+
+    @Test
+    public void testDistinctByApproximateKeyMode()
+    {
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "key_mode: approximate\n";
+
+        List<Object[]> records = filter(yaml, "a", "1", "b", "1", "a", "2", "c", "1", "b", "2");
+
+        assertEquals(3, records.size());
+        assertEquals("a", records.get(0)[0]);
+        assertEquals("b", records.get(1)[0]);
+        assertEquals("c", records.get(2)[0]);
+    }
+
+    @Test
+    public void testApproximateKeyModeStaysWithinCapacity()
+    {
+        schema = schema("_c0", Types.LONG, "_c1", Types.STRING);
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "key_mode: approximate\n" +
+                "expected_keys: 64\n" +
+                "approximate_capacity: 1KB\n";
+
+        // far more keys than 1KB of bloom filters holds; recent keys are still dropped
+        Object[] values = new Object[5000 * 2 * 2];
+        for (int i = 0; i < 5000 * 2; i++) {
+            values[i * 2] = (long) (i / 2);
+            values[i * 2 + 1] = String.valueOf(i);
+        }
+        List<Object[]> records = filter(yaml, values);
+
+        assertTrue(records.size() <= 5000);
+        assertTrue(records.size() > 4900);
+        Set<Object> keys = Sets.newHashSet();
+        for (Object[] record : records) {
+            assertTrue(keys.add(record[0]));
+        }
+    }
+
+    @Test
+    public void testApproximateKeyModeDoesNotSpill()
+    {
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "key_mode: approximate\n" +
+                "memory_budget: 1MB\n";
+
+        exception.expect(ConfigException.class);
+
+        filter(yaml, "a", "a");
+    }
+
+    @Test
+    public void testDistinctWithShards()
+    {
+        schema = schema("_c0", Types.LONG, "_c1", Types.STRING);
+        Object[] values = new Object[2000 * 2];
+        for (int i = 0; i < 2000; i++) {
+            values[i * 2] = (long) (i % 700);
+            values[i * 2 + 1] = String.valueOf(i);
+        }
+
+        for (String keyMode : new String[] {"exact", "hash64", "hash128"}) {
+            for (int shards : new int[] {1, 7, 64}) {
+                String yaml = "" +
+                        "type: distinct\n" +
+                        "columns: [_c0]\n" +
+                        "key_mode: " + keyMode + "\n" +
+                        "shards: " + shards + "\n";
+
+                List<Object[]> records = filter(yaml, values);
+
+                assertEquals(700, records.size());
+                for (int i = 0; i < 700; i++) {
+                    assertEquals((long) i, records.get(i)[0]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDistinctWithExpectedDistinctKeys()
+    {
+        schema = schema("_c0", Types.LONG, "_c1", Types.STRING);
+        Object[] values = new Object[2000 * 2];
+        for (int i = 0; i < 2000; i++) {
+            values[i * 2] = (long) (i % 700);
+            values[i * 2 + 1] = String.valueOf(i);
+        }
+
+        for (String store : new String[] {"key_mode: exact", "key_mode: hash64", "key_mode: hash128", "store: off_heap"}) {
+            // sized for fewer keys than arrive, so that the tables still grow
+            String yaml = "" +
+                    "type: distinct\n" +
+                    "columns: [_c0]\n" +
+                    store + "\n" +
+                    "expected_distinct_keys: 500\n" +
+                    "load_factor: 0.5\n";
+
+            List<Object[]> records = filter(yaml, values);
+
+            assertEquals(700, records.size());
+            for (int i = 0; i < 700; i++) {
+                assertEquals((long) i, records.get(i)[0]);
+            }
+        }
+    }
+
+    @Test
+    public void testConfigureInvalidLoadFactor()
+    {
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "load_factor: 1.0\n";
+
+        exception.expect(ConfigException.class);
+
+        filter(yaml, "a", "a");
+    }
+
+    @Test
+    public void testDistinctBatched()
+    {
+        Object[] values = new Object[1000 * 2];
+        for (int i = 0; i < 1000; i++) {
+            values[i * 2] = i % 3 == 0 ? null : (long) (i % 300);
+            values[i * 2 + 1] = String.valueOf(i);
+        }
+
+        String[] stores = {"key_mode: exact", "key_mode: hash64", "key_mode: hash128", "key_mode: approximate",
+                "store: off_heap", "expected_keys: 1000"};
+        for (String columns : new String[] {"[_c0]", "[_c0, _c1]"}) {
+            for (String store : stores) {
+                schema = schema("_c0", Types.LONG, "_c1", Types.STRING);
+                Object[] input = values.clone();
+                if (columns.contains("_c1")) {
+                    // the second column does not change the keys, but disables the primitive store
+                    for (int i = 0; i < 1000; i++) {
+                        input[i * 2 + 1] = "x";
+                    }
+                }
+                String yaml = "" +
+                        "type: distinct\n" +
+                        "columns: " + columns + "\n" +
+                        "batched: true\n" +
+                        store + "\n";
+
+                List<Object[]> records = filter(yaml, input);
+
+                // 1 null and the 200 values of i % 300 not divisible by 3
+                assertEquals(201, records.size());
+                Set<Object> keys = Sets.newHashSet();
+                for (Object[] record : records) {
+                    assertTrue(keys.add(record[0]));
+                }
+                assertNull(records.get(0)[0]);
+                assertEquals(1L, records.get(1)[0]);
+            }
+        }
+    }
+
+    @Test
+    public void testDistinctAsync()
+    {
+        Object[] values = new Object[1000 * 2];
+        for (int i = 0; i < 1000; i++) {
+            values[i * 2] = "key" + (i % 300);
+            values[i * 2 + 1] = String.valueOf(i);
+        }
+
+        for (String options : new String[] {"batched: false", "batched: true"}) {
+            String yaml = "" +
+                    "type: distinct\n" +
+                    "columns: [_c0]\n" +
+                    "async: true\n" +
+                    "async_workers: 2\n" +
+                    "async_queue_pages: 3\n" +
+                    options + "\n";
+
+            List<Object[]> records = filter(yaml, values);
+
+            // pages are decided and emitted in order, so the first record of each key survives
+            assertEquals(300, records.size());
+            for (int i = 0; i < 300; i++) {
+                assertEquals("key" + i, records.get(i)[0]);
+                assertEquals(String.valueOf(i), records.get(i)[1]);
+            }
+        }
+    }
+
+    @Test
+    public void testDistinctByOffHeapStore()
+    {
+        schema = schema("_c0", Types.LONG, "_c1", Types.STRING);
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0, _c1]\n" +
+                "store: off_heap\n" +
+                "off_heap_capacity: 64MB\n";
+
+        Object[] values = new Object[5000 * 2 * 2];
+        for (int i = 0; i < 5000 * 2; i++) {
+            values[i * 2] = (long) (i % 5000);
+            values[i * 2 + 1] = i % 5000 == 0 ? null : "value" + (i % 5000);
+        }
+        List<Object[]> records = filter(yaml, values);
+
+        assertEquals(5000, records.size());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals((long) i, records.get(i)[0]);
+        }
+    }
+
+    @Test
+    public void testOffHeapStoreFailsOverCapacity()
+    {
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "store: off_heap\n" +
+                "off_heap_capacity: 1MB\n";
+
+        exception.expect(DataException.class);
+        exception.expectMessage("off_heap_capacity");
+
+        Object[] values = new Object[1000 * 2];
+        for (int i = 0; i < 1000; i++) {
+            values[i * 2] = "value" + i;
+            values[i * 2 + 1] = "a";
+        }
+        filter(yaml, values);
+    }
+
+    @Test
+    public void testOffHeapCapacityOverDirectMemory()
+    {
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "store: off_heap\n" +
+                "off_heap_capacity: " + (DirectMemory.maxDirectMemory() + 1) + "\n";
+
+        exception.expect(ConfigException.class);
+        exception.expectMessage("exceeds the direct memory of the JVM");
+
+        filter(yaml, "a", "a");
+    }
+
+    @Test
+    public void testOffHeapStoreReleasesReplacedTables()
+    {
+        OffHeapKeyStore store = new OffHeapKeyStore(64 << 20, 1, 0, 0.75);
+        byte[] key = new byte[8];
+        for (int i = 0; i < 100000; i++) {
+            key[0] = (byte) i;
+            key[1] = (byte) (i >>> 8);
+            key[2] = (byte) (i >>> 16);
+            assertTrue(store.add(key, key.length));
+        }
+        assertTrue(store.rehashes() > 0);
+        // the last table of 262144 slots and the arenas of 12-byte entries, doubling from 64KB;
+        // the replaced tables of 1024 to 131072 slots would add 2MB
+        long arenas = 0;
+        for (long size = 64 << 10, entries = 0; entries < 100000 * 12; entries += size, size *= 2) {
+            arenas += size;
+        }
+        assertEquals(262144 * 8 + arenas, store.estimatedBytes());
+    }
+
+    @Test
+    public void testByteSizeOutOfRange()
+    {
+        for (String size : new String[] {"99999999999999999999", "9999999999TB"}) {
+            try {
+                ByteSize.parseByteSize(size);
+                fail();
+            }
+            catch (ConfigException e) {
+                assertTrue(e.getMessage().contains(size));
+            }
+        }
+        assertEquals(8L << 40, ByteSize.parseByteSize("8TB").getBytes());
+    }
+
+    @Test
+    public void testOffHeapStoreRequiresExactKeyMode()
+    {
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "key_mode: hash64\n" +
+                "store: off_heap\n";
+
+        exception.expect(ConfigException.class);
+
+        filter(yaml, "a", "a");
+    }
+
+    @Test
+    public void testDistinctWithKeyService()
+    {
+        schema = schema("_c0", Types.LONG, "_c1", Types.STRING);
+        Object[] values = new Object[2000 * 2];
+        for (int i = 0; i < 2000; i++) {
+            values[i * 2] = (long) (i % 700);
+            values[i * 2 + 1] = String.valueOf(i);
+        }
+
+        for (String keyMode : new String[] {"exact", "hash64", "hash128"}) {
+            String yaml = "" +
+                    "type: distinct\n" +
+                    "columns: [_c0]\n" +
+                    "key_mode: " + keyMode + "\n" +
+                    "key_service: local\n" +
+                    "key_service_partitions: 7\n";
+
+            List<Object[]> records = filter(yaml, values);
+
+            assertEquals(700, records.size());
+            for (int i = 0; i < 700; i++) {
+                assertEquals((long) i, records.get(i)[0]);
+                assertEquals(String.valueOf(i), records.get(i)[1]);
+            }
+        }
+    }
+
+    @Test
+    public void testDistinctWithPluggedKeyService()
+    {
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "key_service: " + CountingKeyService.class.getName() + "\n" +
+                "key_service_partitions: 2\n" +
+                "key_service_options: {a: b}\n";
+
+        CountingKeyService.calls.set(0);
+        CountingKeyService.releases.set(0);
+        Object[] values = new Object[40 * 2];
+        for (int i = 0; i < 40; i++) {
+            values[i * 2] = "key" + (i % 15);
+            values[i * 2 + 1] = String.valueOf(i);
+        }
+        List<Object[]> records = filter(yaml, values);
+
+        assertEquals(15, records.size());
+        // the service is asked once per page for all partitions
+        int pages = 0;
+        for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, values)) {
+            page.release();
+            pages++;
+        }
+        assertEquals(pages, CountingKeyService.calls.get());
+        assertEquals(1, CountingKeyService.releases.get());
+    }
+
+    @Test
+    public void testLocalKeyServiceIsRefusedInAnotherProcess()
+    {
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "key_service: local\n";
+
+        // tasks opened after the transaction returned run as in another process
+        final TaskSource[] taskSources = new TaskSource[1];
+        plugin.transaction(loadConfigFromYaml(yaml), schema, new Control() {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema)
+            {
+                taskSources[0] = taskSource;
+            }
+        });
+
+        exception.expect(ConfigException.class);
+        exception.expectMessage("key_service: local");
+
+        plugin.open(taskSources[0], schema, schema, new MockPageOutput());
+    }
+
+    @Test
+    public void testProcessStateIsClosedWithItsLastOutput()
+            throws IOException
+    {
+        String duplicatesFile = temporaryFolder.getRoot().toPath().resolve("duplicates.csv").toString();
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "duplicates_file: " + duplicatesFile + "\n";
+
+        // tasks opened after the transaction returned run as in another process
+        final TaskSource[] taskSources = new TaskSource[1];
+        plugin.transaction(loadConfigFromYaml(yaml), schema, new Control() {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema)
+            {
+                taskSources[0] = taskSource;
+            }
+        });
+
+        MockPageOutput output1 = new MockPageOutput();
+        MockPageOutput output2 = new MockPageOutput();
+        PageOutput pageOutput1 = plugin.open(taskSources[0], schema, schema, output1);
+        PageOutput pageOutput2 = plugin.open(taskSources[0], schema, schema, output2);
+        for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, "a", "1", "b", "1")) {
+            pageOutput1.add(page);
+        }
+        for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, "a", "2")) {
+            pageOutput2.add(page);
+        }
+        pageOutput1.finish();
+        pageOutput1.close();
+        pageOutput2.finish();
+        pageOutput2.close();
+        assertEquals(2, Pages.toObjects(schema, output1.pages).size());
+        assertEquals(0, Pages.toObjects(schema, output2.pages).size());
+
+        // the state was closed with its last output, which wrote duplicates_file out
+        String duplicates = new String(Files.readAllBytes(Paths.get(duplicatesFile)), StandardCharsets.UTF_8);
+        assertEquals("_c0,_c1\r\na,2\r\n", duplicates);
+
+        // a later task of the transaction starts with a new state and appends to the file
+        MockPageOutput output3 = new MockPageOutput();
+        try (PageOutput pageOutput3 = plugin.open(taskSources[0], schema, schema, output3)) {
+            for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, "a", "3", "a", "4")) {
+                pageOutput3.add(page);
+            }
+            pageOutput3.finish();
+        }
+        assertEquals(1, Pages.toObjects(schema, output3.pages).size());
+        duplicates = new String(Files.readAllBytes(Paths.get(duplicatesFile)), StandardCharsets.UTF_8);
+        assertEquals("_c0,_c1\r\na,2\r\na,4\r\n", duplicates);
+    }
+
+    @Test
+    public void testKeyServiceLooksKeysUp()
+    {
+        for (int bits : new int[] {0, 64, 128}) {
+            KeyServiceKeyStore store = new KeyServiceKeyStore(
+                    new LocalKeyService("lookup-" + bits, 4, new HashMap<String, String>()), 4, bits);
+            byte[] a = "a".getBytes(StandardCharsets.UTF_8);
+            byte[] b = "b".getBytes(StandardCharsets.UTF_8);
+            assertTrue(store.add(a, a.length));
+            assertTrue(store.contains(a, a.length));
+            assertTrue(!store.contains(b, b.length));
+            assertEquals(1, store.size());
+            store.release();
+        }
+    }
+
+    @Test
+    public void testUnknownKeyService()
+    {
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "key_service: org.example.NoSuchKeyService\n";
+
+        exception.expect(ConfigException.class);
+        exception.expectMessage("Unknown key_service 'org.example.NoSuchKeyService'");
+
+        filter(yaml, "a", "b");
+    }
+
+    @Test
+    public void testDistinctWithBloomPrefilter()
+    {
+        schema = schema("_c0", Types.LONG, "_c1", Types.STRING);
+        for (String store : new String[] {"heap", "off_heap"}) {
+            // far more keys than expected, so that the filter also answers false positives
+            String yaml = "" +
+                    "type: distinct\n" +
+                    "columns: [_c0]\n" +
+                    "store: " + store + "\n" +
+                    "expected_keys: 64\n" +
+                    "fpp: 0.1\n";
+
+            Object[] values = new Object[3000 * 2];
+            for (int i = 0; i < 3000; i++) {
+                values[i * 2] = (long) (i % 1000);
+                values[i * 2 + 1] = String.valueOf(i);
+            }
+            List<Object[]> records = filter(yaml, values);
+
+            assertEquals(1000, records.size());
+            for (int i = 0; i < 1000; i++) {
+                assertEquals((long) i, records.get(i)[0]);
+                assertEquals(String.valueOf(i), records.get(i)[1]);
+            }
+        }
+    }
+
+    @Test
+    public void testBloomPrefilterRequiresExactKeyMode()
+    {
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "key_mode: hash64\n" +
+                "expected_keys: 1000\n";
+
+        exception.expect(ConfigException.class);
+
+        filter(yaml, "a", "a");
+    }
+
+    @Test
+    public void testDistinctWithSpill()
+    {
+        schema = schema("_c0", Types.LONG, "_c1", Types.JSON);
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "memory_budget: 1KB\n" +
+                "spill_partitions: 4\n" +
+                "spill_dir: " + temporaryFolder.getRoot().getAbsolutePath() + "\n";
+
+        Object[] values = new Object[300 * 2];
+        for (int i = 0; i < 300; i++) {
+            values[i * 2] = (long) (i % 100);
+            values[i * 2 + 1] = jsonParser.parse("{\"i\":" + i + "}");
+        }
+        List<Object[]> records = filter(yaml, values);
+
+        assertEquals(100, records.size());
+        Set<Long> keys = Sets.newHashSet();
+        for (Object[] record : records) {
+            long key = (Long) record[0];
+            assertTrue(keys.add(key));
+            // the first record of each key survives
+            assertEquals(jsonParser.parse("{\"i\":" + key + "}"), record[1]);
+        }
+    }
+
+    @Test
+    public void testMemoryPolicyFail()
+    {
+        schema = schema("_c0", Types.LONG, "_c1", Types.STRING);
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "memory_budget: 1KB\n" +
+                "memory_policy: fail\n";
+
+        exception.expect(DataException.class);
+        exception.expectMessage("memory_budget");
+
+        filter(yaml, twiceOverBudget());
+    }
+
+    @Test
+    public void testMemoryPolicyApproximate()
+    {
+        schema = schema("_c0", Types.LONG, "_c1", Types.STRING);
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "memory_budget: 1KB\n" +
+                "memory_policy: approximate\n";
+
+        List<Object[]> records = filter(yaml, twiceOverBudget());
+
+        // keys over the budget are kept in a bloom filter, which drops a few distinct records
+        assertTrue(records.size() <= 2000 && records.size() > 1950);
+        Set<Long> keys = Sets.newHashSet();
+        for (Object[] record : records) {
+            assertTrue(keys.add((Long) record[0]));
+        }
+    }
+
+    @Test
+    public void testMemoryPolicyStop()
+    {
+        schema = schema("_c0", Types.LONG, "_c1", Types.STRING);
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "memory_budget: 1KB\n" +
+                "memory_policy: stop\n";
+
+        List<Object[]> records = filter(yaml, twiceOverBudget());
+
+        // the budget is checked at the 1024th key, and duplicates of later keys pass
+        assertEquals(2000 + (2000 - BudgetedKeyStore.CHECK_INTERVAL), records.size());
+    }
+
+    @Test
+    public void testMemoryPolicyRequiresMemoryBudget()
+    {
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "memory_policy: stop\n";
+
+        exception.expect(ConfigException.class);
+        exception.expectMessage("requires memory_budget");
+
+        filter(yaml, "a", "a");
+    }
+
+    private static Object[] twiceOverBudget()
+    {
+        Object[] values = new Object[4000 * 2];
+        for (int i = 0; i < 4000; i++) {
+            values[i * 2] = (long) (i % 2000);
+            values[i * 2 + 1] = "value" + i;
+        }
+        return values;
+    }
+
+    @Test
+    public void testDistinctWithSpillAcrossTasks()
+    {
+        schema = schema("_c0", Types.STRING, "_c1", Types.LONG);
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "memory_budget: 1KB\n" +
+                "spill_dir: " + temporaryFolder.getRoot().getAbsolutePath() + "\n";
+
+        final List<Object[]> records = Lists.newArrayList();
+        plugin.transaction(loadConfigFromYaml(yaml), schema, new Control() {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema)
+            {
+                Object[] values = new Object[100 * 2];
+                for (int i = 0; i < 100; i++) {
+                    values[i * 2] = "key" + (i % 50);
+                    values[i * 2 + 1] = (long) i;
+                }
+
+                // two overlapping tasks, then a third one after both finished
+                MockPageOutput output1 = new MockPageOutput();
+                MockPageOutput output2 = new MockPageOutput();
+                MockPageOutput output3 = new MockPageOutput();
+                PageOutput pageOutput1 = plugin.open(taskSource, schema, outputSchema, output1);
+                PageOutput pageOutput2 = plugin.open(taskSource, schema, outputSchema, output2);
+                for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, values)) {
+                    pageOutput1.add(page);
+                }
+                for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, values)) {
+                    pageOutput2.add(page);
+                }
+                pageOutput1.finish();
+                pageOutput1.close();
+                pageOutput2.finish();
+                pageOutput2.close();
+
+                values[0] = "key50";
+                try (PageOutput pageOutput3 = plugin.open(taskSource, schema, outputSchema, output3)) {
+                    for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, values)) {
+                        pageOutput3.add(page);
+                    }
+                    pageOutput3.finish();
+                }
+
+                records.addAll(Pages.toObjects(outputSchema, output1.pages));
+                records.addAll(Pages.toObjects(outputSchema, output2.pages));
+                records.addAll(Pages.toObjects(outputSchema, output3.pages));
+            }
+        });
+
+        assertEquals(51, records.size());
+        Set<Object> keys = Sets.newHashSet();
+        for (Object[] record : records) {
+            assertTrue(keys.add(record[0]));
+        }
+    }
+
+    @Test
+    public void testDistinctWithSpillOfTasksOneAfterAnother()
+    {
+        schema = schema("_c0", Types.LONG, "_c1", Types.LONG);
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "memory_budget: 1KB\n" +
+                "spill_partitions: 4\n" +
+                "spill_dir: " + temporaryFolder.getRoot().getAbsolutePath() + "\n";
+
+        final List<Object[]> records = Lists.newArrayList();
+        plugin.transaction(loadConfigFromYaml(yaml), schema, new Control() {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema)
+            {
+                // every task drains its own generation, which must drop the keys drained before
+                for (int task = 0; task < 3; task++) {
+                    Object[] values = new Object[3000 * 2];
+                    for (int i = 0; i < 3000; i++) {
+                        values[i * 2] = (long) ((i + task * 1000) % 4000);
+                        values[i * 2 + 1] = (long) task;
+                    }
+                    MockPageOutput output = new MockPageOutput();
+                    try (PageOutput pageOutput = plugin.open(taskSource, schema, outputSchema, output)) {
+                        for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, values)) {
+                            pageOutput.add(page);
+                        }
+                        pageOutput.finish();
+                    }
+                    records.addAll(Pages.toObjects(outputSchema, output.pages));
+                }
+            }
+        });
+
+        assertEquals(4000, records.size());
+        Set<Object> keys = Sets.newHashSet();
+        for (Object[] record : records) {
+            assertTrue(keys.add(record[0]));
+        }
+    }
+
+    @Test
+    public void testCheckSortedComparesTransformedKeys()
+    {
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "key_transforms: {_c0: [trim, lower]}\n" +
+                "input_sorted: true\n" +
+                "check_sorted: true\n";
+
+        // grouped by the transformed keys, though the raw values go down from 'a' to 'B'
+        List<Object[]> records = filter(yaml,
+                "A", "1", "a ", "2", "B", "1", " b", "2", "c", "1");
+
+        assertEquals(3, records.size());
+        assertEquals("A", records.get(0)[0]);
+        assertEquals("B", records.get(1)[0]);
+        assertEquals("c", records.get(2)[0]);
+    }
+
+    @Test
+    public void testDistinctSortedInput()
+    {
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "input_sorted: true\n" +
+                "check_sorted: true\n";
+
+        List<Object[]> records = filter(yaml,
+                "a", "1", "a", "2", "b", "1", "b", "2",
+                "b", "3", "c", "1", "d", "1", "d", "2");
+
+        assertEquals(4, records.size());
+        assertEquals("a", records.get(0)[0]);
+        assertEquals("b", records.get(1)[0]);
+        assertEquals("c", records.get(2)[0]);
+        assertEquals("d", records.get(3)[0]);
+        assertEquals("1", records.get(3)[1]);
+    }
+
+    @Test
+    public void testDistinctSortedInputDescending()
+    {
+        schema = schema("_c0", Types.LONG, "_c1", Types.STRING);
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0, _c1]\n" +
+                "input_sorted: true\n" +
+                "check_sorted: true\n";
+
+        List<Object[]> records = filter(yaml,
+                3L, "a", 3L, "b", 3L, "b", 2L, "a",
+                2L, "c", null, "a", 1L, "a", 1L, "a");
+
+        assertEquals(6, records.size());
+    }
+
+    @Test
+    public void testCheckSortedFailsOnUnsortedInput()
+    {
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "input_sorted: true\n" +
+                "check_sorted: true\n";
+
+        exception.expect(DataException.class);
+        exception.expectMessage("not sorted");
+
+        filter(yaml, "a", "1", "b", "1", "a", "2");
+    }
+
+    @Test
+    public void testDistinctWithTimeWindow()
+    {
+        schema = schema("_c0", Types.STRING, "_c1", Types.TIMESTAMP);
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "window: 10s\n" +
+                "window_column: _c1\n" +
+                "window_generations: 1\n";
+
+        List<Object[]> records = filter(yaml,
+                "a", Timestamp.ofEpochSecond(0),
+                "a", Timestamp.ofEpochSecond(5),
+                "b", Timestamp.ofEpochSecond(12),
+                // a is still within the window of its bucket
+                "a", Timestamp.ofEpochSecond(15),
+                // the bucket of the first a is evicted
+                "a", Timestamp.ofEpochSecond(25),
+                "b", Timestamp.ofEpochSecond(26),
+                // an earlier record is checked against the live buckets
+                "a", Timestamp.ofEpochSecond(20));
+
+        assertEquals(3, records.size());
+        assertEquals(Timestamp.ofEpochSecond(0), records.get(0)[1]);
+        assertEquals(Timestamp.ofEpochSecond(12), records.get(1)[1]);
+        assertEquals(Timestamp.ofEpochSecond(25), records.get(2)[1]);
+    }
+
+    @Test
+    public void testDistinctWithRecordWindow()
+    {
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "window: 4 records\n" +
+                "window_generations: 1\n";
+
+        // pages of 4 records
+        List<Object[]> records = filter(yaml,
+                "a", "1", "b", "1", "a", "2", "c", "1",
+                "a", "3", "d", "1", "e", "1", "f", "1",
+                "a", "4", "d", "2", "b", "2", "x", "1");
+
+        assertEquals(9, records.size());
+        assertEquals("4", records.get(6)[1]);
+        assertEquals("b", records.get(7)[0]);
+        assertEquals("x", records.get(8)[0]);
+    }
+
+    @Test
+    public void testTimeWindowRequiresWindowColumn()
+    {
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "window: 10m\n";
+
+        exception.expect(ConfigException.class);
+
+        filter(yaml, "a", "a");
+    }
+
+    @Test
+    public void testWindowOutOfRange()
+    {
+        for (String window : new String[] {"99999999999999999999s", "9223372036854775807d"}) {
+            try {
+                Window.fromString(window);
+                fail();
+            }
+            catch (ConfigException e) {
+                assertTrue(e.getMessage().contains(window));
+            }
+        }
+    }
+
+    @Test
+    public void testKeepLast()
+    {
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "keep: last\n" +
+                "task_count: 1\n";
+
+        List<Object[]> records = filter(yaml, "a", "1", "b", "1", "a", "2", "c", "1", "b", "2", "a", "3");
+
+        assertEquals(3, records.size());
+        Map<Object, Object> winners = toMap(records);
+        assertEquals("3", winners.get("a"));
+        assertEquals("2", winners.get("b"));
+        assertEquals("1", winners.get("c"));
+    }
+
+    @Test
+    public void testKeepLastWithTasksOneAfterAnother()
+    {
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "keep: last\n" +
+                "task_count: 3\n";
+
+        // as with max_threads: 1, every task finishes before the next one opens
+        final List<Object[]> records = Lists.newArrayList();
+        plugin.transaction(loadConfigFromYaml(yaml), schema, new Control() {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema)
+            {
+                String[][] tasks = {{"a", "1", "b", "1"}, {"a", "2", "c", "1"}, {"b", "2", "a", "3"}};
+                for (String[] values : tasks) {
+                    MockPageOutput output = new MockPageOutput();
+                    try (PageOutput pageOutput = plugin.open(taskSource, schema, outputSchema, output)) {
+                        for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, (Object[]) values)) {
+                            pageOutput.add(page);
+                        }
+                        pageOutput.finish();
+                    }
+                    records.addAll(Pages.toObjects(outputSchema, output.pages));
+                }
+            }
+        });
+
+        assertEquals(3, records.size());
+        Map<Object, Object> winners = toMap(records);
+        assertEquals("3", winners.get("a"));
+        assertEquals("2", winners.get("b"));
+        assertEquals("1", winners.get("c"));
+    }
+
+    @Test
+    public void testKeepLastFailsWhenFewerTasksRun()
+    {
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "keep: last\n" +
+                "task_count: 2\n";
+
+        // the winners are never emitted when only one of two tasks runs
+        exception.expect(DataException.class);
+        exception.expectMessage("only 1 tasks finished");
+
+        filter(yaml, "a", "1", "a", "2");
+    }
+
+    @Test
+    public void testKeepLastRequiresTaskCount()
+    {
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "keep: last\n";
+
+        exception.expect(ConfigException.class);
+        exception.expectMessage("task_count");
+
+        filter(yaml, "a", "1");
+    }
+
+    @Test
+    public void testKeepMaxByAndMinBy()
+    {
+        schema = schema("_c0", Types.STRING, "_c1", Types.LONG);
+        Object[] values = {"a", 2L, "b", null, "a", 5L, "b", -1L, "a", 3L, "c", null, "a", 5L};
+
+        Map<Object, Object> max = toMap(filter("" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "keep: max_by(_c1)\n" +
+                "task_count: 1\n", values));
+        assertEquals(3, max.size());
+        assertEquals(5L, max.get("a"));
+        assertEquals(-1L, max.get("b"));
+        assertNull(max.get("c"));
+
+        Map<Object, Object> min = toMap(filter("" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "keep: min_by(_c1)\n" +
+                "task_count: 1\n", values));
+        assertEquals(3, min.size());
+        assertEquals(2L, min.get("a"));
+        // nulls come first
+        assertNull(min.get("b"));
+    }
+
+    @Test
+    public void testKeepLastWithSpill()
+    {
+        schema = schema("_c0", Types.LONG, "_c1", Types.STRING);
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "keep: last\n" +
+                "task_count: 1\n" +
+                "memory_budget: 4KB\n" +
+                "spill_partitions: 4\n" +
+                "spill_dir: " + temporaryFolder.getRoot().getAbsolutePath() + "\n";
+
+        Object[] values = new Object[1000 * 2];
+        for (int i = 0; i < 1000; i++) {
+            values[i * 2] = (long) (i % 200);
+            values[i * 2 + 1] = String.valueOf(i);
+        }
+        List<Object[]> records = filter(yaml, values);
+
+        assertEquals(200, records.size());
+        Map<Object, Object> winners = toMap(records);
+        for (int i = 0; i < 200; i++) {
+            assertEquals(String.valueOf(800 + i), winners.get((long) i));
+        }
+    }
+
+    @Test
+    public void testKeepByUnknownColumn()
+    {
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "keep: max_by(_c9)\n" +
+                "task_count: 1\n";
+
+        exception.expect(ConfigException.class);
+
+        filter(yaml, "a", "a");
+    }
+
+    @Test
+    public void testGaugesHoldTheLatestReading()
+    {
+        DistinctStats totals = new DistinctStats();
+        DistinctStats first = new DistinctStats();
+        DistinctStats second = new DistinctStats();
+        first.add(DistinctStats.Metric.INPUT_RECORDS, 3);
+        first.set(DistinctStats.Metric.DISTINCT_KEYS, 10);
+        first.mergeInto(totals);
+        // a running task merges its counters before it recorded gauges
+        second.add(DistinctStats.Metric.INPUT_RECORDS, 2);
+        second.mergeInto(totals);
+        assertEquals(10, totals.get(DistinctStats.Metric.DISTINCT_KEYS));
+
+        // the store shrank, e.g. by window eviction, when the second task finished
+        second.set(DistinctStats.Metric.DISTINCT_KEYS, 4);
+        second.mergeInto(totals);
+        assertEquals(4, totals.get(DistinctStats.Metric.DISTINCT_KEYS));
+        assertEquals(5, totals.get(DistinctStats.Metric.INPUT_RECORDS));
+    }
+
+    @Test
+    public void testWriteStatsFile()
+            throws IOException
+    {
+        String statsFile = temporaryFolder.getRoot().toPath().resolve("stats.json").toString();
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "stats_file: " + statsFile + "\n";
+
+        filter(yaml, "a", "1", "a", "2", "b", "1", "c", "1", "c", "2", "d", "1");
+
+        String stats = new String(Files.readAllBytes(Paths.get(statsFile)), StandardCharsets.UTF_8);
+        assertTrue(stats, stats.contains("\"input_records\":6"));
+        assertTrue(stats, stats.contains("\"output_records\":4"));
+        assertTrue(stats, stats.contains("\"dropped_records\":2"));
+        assertTrue(stats, stats.contains("\"distinct_keys\":4"));
+    }
+
+    @Test
+    public void testWriteDuplicatesFile()
+            throws IOException
+    {
+        String duplicatesFile = temporaryFolder.getRoot().toPath().resolve("duplicates.csv").toString();
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "duplicates_file: " + duplicatesFile + "\n";
+
+        List<Object[]> records = filter(yaml, "a", "1", "a", "x,\"y\"", "b", "1", "b", null, "a", "3");
+        assertEquals(2, records.size());
+
+        String duplicates = new String(Files.readAllBytes(Paths.get(duplicatesFile)), StandardCharsets.UTF_8);
+        assertEquals("_c0,_c1\r\na,\"x,\"\"y\"\"\"\r\nb,\r\na,3\r\n", duplicates);
+    }
+
+    @Test
+    public void testDuplicatesFileWithKeepLast()
+    {
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "keep: last\n" +
+                "task_count: 1\n" +
+                "duplicates_file: " + temporaryFolder.getRoot().toPath().resolve("duplicates.csv") + "\n";
+
+        exception.expect(ConfigException.class);
+        exception.expectMessage("duplicates_file");
+
+        filter(yaml, "a", "a");
+    }
+
+    @Test
+    public void testDistinctWithStatePath()
+    {
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "state_path: " + temporaryFolder.getRoot().toPath().resolve("state") + "\n";
+
+        List<Object[]> records = filter(yaml, "a", "1", "b", "1", "a", "2");
+        assertEquals(2, records.size());
+
+        // keys of the earlier run are dropped
+        records = filter(yaml, "a", "3", "c", "3", "c", "4", "b", "3", "d", "3");
+        assertEquals(2, records.size());
+        assertEquals("c", records.get(0)[0]);
+        assertEquals("3", records.get(0)[1]);
+        assertEquals("d", records.get(1)[0]);
+
+        records = filter(yaml, "a", "5", "b", "5", "c", "5", "d", "5", "e", "5");
+        assertEquals(1, records.size());
+        assertEquals("e", records.get(0)[0]);
+    }
+
+    @Test
+    public void testStatePathIsNotCommittedOnFailure()
+    {
+        final String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "state_path: " + temporaryFolder.getRoot().toPath().resolve("state") + "\n";
+
+        try {
+            plugin.transaction(loadConfigFromYaml(yaml), schema, new Control() {
+                @Override
+                public void run(TaskSource taskSource, Schema outputSchema)
+                {
+                    try (PageOutput pageOutput = plugin.open(taskSource, schema, outputSchema, new MockPageOutput())) {
+                        for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, "a", "1")) {
+                            pageOutput.add(page);
+                        }
+                        pageOutput.finish();
+                    }
+                    throw new DataException("failed");
+                }
+            });
+            fail();
+        }
+        catch (DataException e) {
+            // expected
+        }
+
+        List<Object[]> records = filter(yaml, "a", "2");
+        assertEquals(1, records.size());
+    }
+
+    @Test
+    public void testStatePathOfRunningTransactionIsRefused()
+    {
+        final String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "state_path: " + temporaryFolder.getRoot().toPath().resolve("state") + "\n";
+
+        plugin.transaction(loadConfigFromYaml(yaml), schema, new Control() {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema)
+            {
+                try {
+                    filter(yaml, "a", "1");
+                    fail();
+                }
+                catch (ConfigException e) {
+                    assertTrue(e.getMessage().contains("another running transaction"));
+                }
+            }
+        });
+
+        // the path is released with the transaction
+        assertEquals(1, filter(yaml, "a", "1").size());
+    }
+
+    @Test
+    public void testStateSegmentsAreMerged()
+            throws IOException
+    {
+        Path state = temporaryFolder.getRoot().toPath().resolve("state");
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "state_path: " + state + "\n";
+
+        // every run commits a segment of its new keys, and one more than the limit merges them
+        for (int run = 0; run <= StateStore.MAX_SEGMENTS; run++) {
+            assertEquals(2, filter(yaml, "a" + run, "1", "b" + run, "1", "a" + run, "2").size());
+        }
+        int segments = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(state, "segment-*.dat")) {
+            for (Path path : stream) {
+                segments++;
+            }
+        }
+        assertEquals(1, segments);
+
+        // the merged segment still holds the keys of every run
+        List<Object[]> records = filter(yaml, "a0", "1", "b7", "1", "a16", "1", "c", "1");
+        assertEquals(1, records.size());
+        assertEquals("c", records.get(0)[0]);
+    }
+
+    @Test
+    public void testStatePathIsReleasedWhenItFailsToOpen()
+            throws IOException
+    {
+        Path state = temporaryFolder.getRoot().toPath().resolve("state");
+        Files.createDirectories(state);
+        Path segment = state.resolve("segment-00000001.dat");
+        Files.write(segment, new byte[] {1, 2, 3});
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "state_path: " + state + "\n";
+
+        try {
+            filter(yaml, "a", "1");
+            fail();
+        }
+        catch (DataException e) {
+            assertTrue(e.getMessage().contains("truncated state segment"));
+        }
+
+        // the lock was released, so a later run of this process opens the directory
+        Files.delete(segment);
+        assertEquals(1, filter(yaml, "a", "1").size());
+    }
+
+    @Test
+    public void testResumeCheckpointOfFailedRun()
+    {
+        String state = temporaryFolder.getRoot().toPath().resolve("state").toString();
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "state_path: " + state + "\n" +
+                "checkpoint_interval_seconds: 1\n";
+        failAfterCheckpoint(yaml);
+
+        // keys of the finished task are dropped, the keys of the failed task are not
+        List<Object[]> records = filter(yaml + "resume_checkpoint: true\n", "a", "1", "b", "2", "c", "3", "d", "4");
+        assertEquals(2, records.size());
+        assertEquals("c", records.get(0)[0]);
+        assertEquals("d", records.get(1)[0]);
+
+        // the resumed checkpoint is committed with the run
+        assertEquals(0, filter(yaml, "a", "1", "b", "2", "c", "3", "d", "4").size());
+    }
+
+    @Test
+    public void testCheckpointOfFailedRunIsDeletedWithoutResume()
+    {
+        String yaml = "" +
+                "type: distinct\n" +
+                "columns: [_c0]\n" +
+                "state_path: " + temporaryFolder.getRoot().toPath().resolve("state") + "\n" +
+                "checkpoint_interval_seconds: 1\n";
+        failAfterCheckpoint(yaml);
+
+        assertEquals(4, filter(yaml, "a", "1", "b", "2", "c", "3", "d", "4").size());
+        assertEquals(0, filter(yaml + "resume_checkpoint: true\n", "a", "1", "b", "2", "c", "3", "d", "4").size());
+    }
+
+    // a task adds a and b and finishes after the checkpoint interval, so they are checkpointed.
+    // another task adds c, and d after the interval, but fails before it finishes
+    private void failAfterCheckpoint(String yaml)
+    {
+        try {
+            plugin.transaction(loadConfigFromYaml(yaml), schema, new Control() {
+                @Override
+                public void run(TaskSource taskSource, Schema outputSchema)
+                {
+                    try (PageOutput pageOutput = plugin.open(taskSource, schema, outputSchema, new MockPageOutput())) {
+                        for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, "a", "1", "b", "2")) {
+                            pageOutput.add(page);
+                        }
+                        Uninterruptibles.sleepUninterruptibly(1100, TimeUnit.MILLISECONDS);
+                        pageOutput.finish();
+                    }
+                    try (PageOutput pageOutput = plugin.open(taskSource, schema, outputSchema, new MockPageOutput())) {
+                        for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, "c", "3")) {
+                            pageOutput.add(page);
+                        }
+                        Uninterruptibles.sleepUninterruptibly(1100, TimeUnit.MILLISECONDS);
+                        for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, "d", "4")) {
+                            pageOutput.add(page);
+                        }
+                    }
+                    throw new DataException("failed");
+                }
+            });
+            fail();
+        }
+        catch (DataException e) {
+            // expected
+        }
+    }
 }